@@ -0,0 +1,48 @@
+package com.importantnotification;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Ends an alert from its notification: the "Stop" action, or the notification being dismissed.
+ */
+public class AlertActionReceiver extends BroadcastReceiver {
+    private static final String TAG = "AlertActionReceiver";
+
+    public static final String ACTION_STOP = "com.importantnotification.STOP_ALERT";
+    public static final String ACTION_DISMISSED = "com.importantnotification.ALERT_DISMISSED";
+
+    private static final String EXTRA_KIND = "kind";
+    private static final String EXTRA_SENDER = "sender";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        Log.d(TAG, "Alert action received: " + action);
+
+        if (ACTION_STOP.equals(action) || ACTION_DISMISSED.equals(action)) {
+            String sender = intent.getStringExtra(EXTRA_SENDER);
+            if (sender != null) {
+                AlertSessions.cancel(intent.getIntExtra(EXTRA_KIND, AlertSessions.SMS), sender);
+            }
+        }
+    }
+
+    /**
+     * Broadcast that ends the alert of the given kind from a sender
+     */
+    public static PendingIntent createIntent(Context context, String action, int kind, String sender) {
+        Intent intent = new Intent(context, AlertActionReceiver.class)
+            .setAction(action)
+            // Extras don't tell pending intents apart, so each sender's alert gets its own data
+            .setData(Uri.fromParts("alert", kind + ":" + sender, null))
+            .putExtra(EXTRA_KIND, kind)
+            .putExtra(EXTRA_SENDER, sender);
+        return PendingIntent.getBroadcast(context, 0, intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+}
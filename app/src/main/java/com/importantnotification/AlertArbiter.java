@@ -0,0 +1,244 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.Ringtone;
+import android.media.RingtoneManager;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Decides which alert's beep sequence gets the audio output.
+ *
+ * Only one sequence plays at a time. A higher priority sequence preempts the one playing,
+ * which is then paused or dropped according to the preempted kind's policy; anything of equal
+ * or lower priority waits its turn. Waiting sequences are played highest priority first, and
+ * in the order they were requested within a priority. Message alerts never start during a
+ * phone conversation, whether they come in during one or were waiting behind the call's ring.
+ */
+public class AlertArbiter {
+    private static final String TAG = "AlertArbiter";
+
+    /** A preempted sequence waits and plays its remaining beeps once the output is free */
+    public static final int PAUSE = 0;
+    /** A preempted sequence is abandoned */
+    public static final int DROP = 1;
+
+    // Calls outrank messages; every important contact is on the same tier
+    private static final int SMS_PRIORITY = 0;
+    private static final int CALL_PRIORITY = 1;
+
+    private static final Comparator<Request> ORDER = (a, b) -> {
+        if (a.priority != b.priority) {
+            return Integer.compare(b.priority, a.priority);
+        }
+        return Long.compare(a.sequence, b.sequence);
+    };
+
+    private static final PriorityQueue<Request> waiting = new PriorityQueue<>(4, ORDER);
+    private static Request current;
+    // Ends the current sequence once its beeps have played
+    private static AlertScheduler.Task finishTask;
+    private static long nextSequence;
+    private static Context appContext;
+    // Set by PhoneStateReceiver, which hears of an answered call before the audio mode follows
+    private static volatile boolean callOffHook;
+
+    /**
+     * Called on the alert thread once the owner's sequence has played out or been dropped
+     */
+    public interface Listener {
+        void onSequenceDone();
+    }
+
+    private static class Request {
+        final Object owner;
+        final int kind;
+        final int priority;
+        final AlertConfig.BeepPlan plan;
+        final Listener listener;
+        final long sequence;
+        int remaining;
+        long startedAt;
+
+        Request(Object owner, int kind, AlertConfig.BeepPlan plan, Listener listener, long sequence) {
+            this.owner = owner;
+            this.kind = kind;
+            this.priority = kind == AlertSessions.CALL ? CALL_PRIORITY : SMS_PRIORITY;
+            this.plan = plan;
+            this.listener = listener;
+            this.sequence = sequence;
+            this.remaining = plan.getBeepCount();
+        }
+    }
+
+    /**
+     * Record whether a phone call is in progress. Call before cancelling the call alerts, so
+     * messages waiting behind them see the new state.
+     */
+    public static void setCallOffHook(boolean offHook) {
+        callOffHook = offHook;
+    }
+
+    /**
+     * Queue a beep sequence for an owner. It starts right away if nothing of equal or higher
+     * priority is playing.
+     * @param owner Identifies the sequence to {@link #isActive} and {@link #cancel}
+     */
+    public static synchronized void request(Context context, Object owner, int kind,
+                                            AlertConfig.BeepPlan plan, Listener listener) {
+        appContext = context.getApplicationContext();
+        Request request = new Request(owner, kind, plan, listener, nextSequence++);
+
+        if (current != null && request.priority > current.priority) {
+            Log.d(TAG, "Kind " + kind + " alert preempts kind " + current.kind);
+            preemptCurrent();
+        }
+        if (current == null) {
+            startOrDrop(request);
+        } else {
+            Log.d(TAG, "Kind " + kind + " alert waits for the output");
+            waiting.add(request);
+        }
+    }
+
+    /**
+     * @return Whether the owner has a sequence playing or waiting to play
+     */
+    public static synchronized boolean isActive(Object owner) {
+        if (current != null && current.owner == owner) {
+            return true;
+        }
+        for (Request request : waiting) {
+            if (request.owner == owner) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop or withdraw the owner's sequence without notifying its listener
+     */
+    public static synchronized void cancel(Object owner) {
+        if (current != null && current.owner == owner) {
+            AlertScheduler.cancel(finishTask);
+            ToneEngine.stop(current.kind);
+            current = null;
+            startNext();
+            return;
+        }
+        Iterator<Request> it = waiting.iterator();
+        while (it.hasNext()) {
+            if (it.next().owner == owner) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * What happens to a kind of alert's sequence when a higher priority one takes over
+     */
+    private static int policyFor(int kind) {
+        // A call alert is only useful while it rings, a message alert is still worth hearing
+        return kind == AlertSessions.CALL ? DROP : PAUSE;
+    }
+
+    private static void preemptCurrent() {
+        Request preempted = current;
+        current = null;
+        AlertScheduler.cancel(finishTask);
+        ToneEngine.stop(preempted.kind);
+
+        // Each period starts with its beep, so a started period counts as played
+        int period = Math.max(1, preempted.plan.getPeriod());
+        long elapsed = SystemClock.uptimeMillis() - preempted.startedAt;
+        int played = (int) Math.min(preempted.remaining, (elapsed + period - 1) / period);
+        preempted.remaining -= played;
+
+        if (policyFor(preempted.kind) == PAUSE && preempted.remaining > 0) {
+            Log.d(TAG, "Pausing kind " + preempted.kind + " alert with " + preempted.remaining + " beeps left");
+            waiting.add(preempted);
+        } else {
+            Log.d(TAG, "Dropping kind " + preempted.kind + " alert");
+            notifyDone(preempted);
+        }
+    }
+
+    private static void finish(Request request) {
+        synchronized (AlertArbiter.class) {
+            if (current != request) {
+                return; // Cancelled or preempted as it was about to finish
+            }
+            current = null;
+            startNext();
+        }
+        request.listener.onSequenceDone();
+    }
+
+    private static void startNext() {
+        Request next;
+        while (current == null && (next = waiting.poll()) != null) {
+            startOrDrop(next);
+        }
+    }
+
+    private static void startOrDrop(Request request) {
+        if (request.kind == AlertSessions.SMS && isInCall()) {
+            // A message alert would beep over the conversation, and by the time the call
+            // ends it is stale; the notification is still there
+            Log.d(TAG, "In a call, dropping kind " + request.kind + " alert");
+            notifyDone(request);
+            return;
+        }
+        startSequence(request);
+    }
+
+    private static void startSequence(Request request) {
+        current = request;
+        request.startedAt = SystemClock.uptimeMillis();
+        if (!ToneEngine.play(request.kind, request.plan, request.remaining)) {
+            if (request.kind == AlertSessions.SMS) {
+                playFallbackSound(appContext);
+            }
+            current = null;
+            notifyDone(request);
+            return;
+        }
+        finishTask = AlertScheduler.schedule(request.owner, (long) request.remaining * request.plan.getPeriod(),
+            () -> finish(request));
+    }
+
+    private static void notifyDone(Request request) {
+        AlertScheduler.post(request.listener::onSequenceDone);
+    }
+
+    private static boolean isInCall() {
+        if (callOffHook) {
+            return true;
+        }
+        // Covers calls placed before this process started, and VoIP calls
+        AudioManager audioManager = (AudioManager) appContext.getSystemService(Context.AUDIO_SERVICE);
+        int mode = audioManager.getMode();
+        return mode == AudioManager.MODE_IN_CALL || mode == AudioManager.MODE_IN_COMMUNICATION;
+    }
+
+    /**
+     * Default notification sound, for when the beeps can't be played
+     */
+    private static void playFallbackSound(Context context) {
+        try {
+            Uri notification = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
+            Ringtone ringtone = RingtoneManager.getRingtone(context, notification);
+            if (ringtone != null) {
+                ringtone.play();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error playing notification sound", e);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the alert settings, compiled into what the receivers actually need.
+ *
+ * The snapshot is built once from the settings and replaced whenever they change, so an
+ * alert reads one volatile field instead of a preference per value. The beep timing and the
+ * alert volume for each stream maximum are precomputed.
+ */
+public final class AlertConfig {
+    private static final String TAG = "AlertConfig";
+
+    // Alert volumes are precomputed for stream maximums up to this value
+    private static final int MAX_TABLED_VOLUME = 100;
+    // Keep the boosted volume a little past the last beep
+    private static final int RESTORE_MARGIN_MS = 3000;
+
+    // Only these keys affect the snapshot; contacts and schedules share the same store
+    private static final Set<String> SETTINGS_KEYS = new HashSet<>(Arrays.asList(
+        "service_enabled", "volume_level", "beep_count", "sms_interval", "call_interval", "burst_window",
+        "sms_burst_limit", "sms_refill_rate", "repeat_call_threshold", "repeat_call_window"));
+
+    private static volatile AlertConfig current;
+    // SharedPreferences only keeps weak references to listeners, so hold on to ours here
+    private static SharedPreferences.OnSharedPreferenceChangeListener settingsListener;
+
+    private final boolean serviceEnabled;
+    private final int volumeLevel;
+    private final int burstWindowMs;
+    private final int smsBurstLimit;
+    private final int smsRefillRate;
+    private final int repeatCallThreshold;
+    private final int repeatCallWindowMs;
+    private final int[] alertVolumes;
+    private final BeepPlan smsPlan;
+    private final BeepPlan callPlan;
+
+    /**
+     * A precompiled beep sequence for one kind of alert
+     */
+    public static final class BeepPlan {
+        private final int beepCount;
+        private final int beepDurationMs;
+        private final int intervalMs;
+
+        BeepPlan(int beepCount, int intervalMs, int beepDurationMs) {
+            this.beepCount = beepCount;
+            this.beepDurationMs = beepDurationMs;
+            this.intervalMs = intervalMs;
+        }
+
+        public int getBeepCount() { return beepCount; }
+        public int getBeepDuration() { return beepDurationMs; }
+        /** Time from the start of one beep to the start of the next */
+        public int getInterval() { return intervalMs; }
+        /** How long each beep takes to play out; a beep longer than the interval delays the next */
+        public int getPeriod() { return Math.max(intervalMs, beepDurationMs); }
+        /** How long a boosted volume is kept after the sequence has played out */
+        public int getRestoreMargin() { return RESTORE_MARGIN_MS; }
+    }
+
+    private AlertConfig(SharedPreferences prefs) {
+        serviceEnabled = prefs.getBoolean("service_enabled", AppSettings.DEFAULT_SERVICE_ENABLED);
+        volumeLevel = prefs.getInt("volume_level", AppSettings.DEFAULT_VOLUME_LEVEL);
+        burstWindowMs = prefs.getInt("burst_window", AppSettings.DEFAULT_BURST_WINDOW);
+        smsBurstLimit = prefs.getInt("sms_burst_limit", AppSettings.DEFAULT_SMS_BURST_LIMIT);
+        smsRefillRate = prefs.getInt("sms_refill_rate", AppSettings.DEFAULT_SMS_REFILL_RATE);
+        repeatCallThreshold = prefs.getInt("repeat_call_threshold", AppSettings.DEFAULT_REPEAT_CALL_THRESHOLD);
+        repeatCallWindowMs = prefs.getInt("repeat_call_window", AppSettings.DEFAULT_REPEAT_CALL_WINDOW);
+
+        alertVolumes = new int[MAX_TABLED_VOLUME + 1];
+        for (int maxVolume = 0; maxVolume <= MAX_TABLED_VOLUME; maxVolume++) {
+            alertVolumes[maxVolume] = AppSettings.calculateAlertVolume(volumeLevel, maxVolume);
+        }
+
+        // Beep durations are fixed (a beep is a beep!), only count and intervals are configurable
+        int beepCount = prefs.getInt("beep_count", AppSettings.DEFAULT_BEEP_COUNT);
+        smsPlan = new BeepPlan(beepCount,
+            prefs.getInt("sms_interval", AppSettings.DEFAULT_SMS_INTERVAL),
+            AppSettings.DEFAULT_SMS_BEEP_DURATION);
+        callPlan = new BeepPlan(beepCount,
+            prefs.getInt("call_interval", AppSettings.DEFAULT_CALL_INTERVAL),
+            AppSettings.DEFAULT_CALL_BEEP_DURATION);
+    }
+
+    /**
+     * Get the current settings snapshot.
+     * The snapshot is built on first use and rebuilt whenever a setting changes.
+     */
+    public static AlertConfig get(Context context) {
+        AlertConfig config = current;
+        if (config != null) {
+            return config;
+        }
+
+        synchronized (AlertConfig.class) {
+            if (current == null) {
+                SharedPreferences prefs = AppSettings.getSettingsPrefs(context.getApplicationContext());
+                if (settingsListener == null) {
+                    settingsListener = (changedPrefs, key) -> {
+                        if (!SETTINGS_KEYS.contains(key)) {
+                            return;
+                        }
+                        synchronized (AlertConfig.class) {
+                            current = new AlertConfig(changedPrefs);
+                        }
+                        Log.d(TAG, "Settings changed (" + key + "), alert config rebuilt");
+                    };
+                    prefs.registerOnSharedPreferenceChangeListener(settingsListener);
+                }
+                current = new AlertConfig(prefs);
+            }
+            return current;
+        }
+    }
+
+    public boolean isServiceEnabled() { return serviceEnabled; }
+    public int getVolumeLevel() { return volumeLevel; }
+    /** Repeat alerts from a sender this soon after the last one extend its running alert */
+    public int getBurstWindow() { return burstWindowMs; }
+    /** SMS alerts a sender can sound in a row before {@link SmsRateLimiter} holds them back */
+    public int getSmsBurstLimit() { return smsBurstLimit; }
+    /** SMS alerts per minute a sender gets back once over the burst limit */
+    public int getSmsRefillRate() { return smsRefillRate; }
+    /** Calls from any one number within the repeat window that alert like an important contact, 0 if off */
+    public int getRepeatCallThreshold() { return repeatCallThreshold; }
+    public int getRepeatCallWindow() { return repeatCallWindowMs; }
+    public BeepPlan getSmsPlan() { return smsPlan; }
+    public BeepPlan getCallPlan() { return callPlan; }
+
+    /**
+     * @param maxVolume Maximum volume from AudioManager.getStreamMaxVolume()
+     * @return The volume to boost the stream to for an alert
+     */
+    public int getAlertVolume(int maxVolume) {
+        if (maxVolume >= 0 && maxVolume <= MAX_TABLED_VOLUME) {
+            return alertVolumes[maxVolume];
+        }
+        return AppSettings.calculateAlertVolume(volumeLevel, maxVolume);
+    }
+}
@@ -0,0 +1,270 @@
+package com.importantnotification;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the delayed alert work on a dedicated thread, so alert timing doesn't depend on how
+ * busy the main thread is.
+ *
+ * Tasks are kept in a hierarchical timing wheel with 10ms ticks: 256 slots of one tick,
+ * then 64 slots of 256 ticks and 64 slots of 16384 ticks (about three hours; anything later
+ * waits in the last level and is placed again as it comes closer). Adding and cancelling a
+ * task only links or unlinks it in a slot. Every task has an owner, usually an alert
+ * session, and all of an owner's tasks can be cancelled at once. The thread only wakes for
+ * the next occupied slot or the next time an outer level has to be spread out.
+ */
+public class AlertScheduler {
+    private static final String TAG = "AlertScheduler";
+
+    private static final long TICK_MS = 10;
+    private static final int LEVEL0_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVEL0_SIZE = 1 << LEVEL0_BITS;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL1_SHIFT = LEVEL0_BITS;
+    private static final int LEVEL2_SHIFT = LEVEL0_BITS + LEVEL_BITS;
+    private static final long LEVEL1_SPAN = 1L << LEVEL2_SHIFT;
+    private static final long LEVEL2_SPAN = 1L << (LEVEL2_SHIFT + LEVEL_BITS);
+
+    private static final Handler handler;
+    private static final long baseTime = SystemClock.uptimeMillis();
+
+    // Slot lists of each level, guarded by AlertScheduler.class
+    private static final Task[] level0 = new Task[LEVEL0_SIZE];
+    private static final Task[] level1 = new Task[LEVEL_SIZE];
+    private static final Task[] level2 = new Task[LEVEL_SIZE];
+    private static final Map<Object, Task> byOwner = new HashMap<>();
+    private static long currentTick;
+    private static int taskCount;
+    private static long wakeTick = -1;
+
+    private static final Runnable tick = AlertScheduler::advance;
+    // Reused by the alert thread to run expired tasks outside the lock
+    private static final List<Task> expired = new ArrayList<>();
+
+    static {
+        HandlerThread thread = new HandlerThread("AlertScheduler", Process.THREAD_PRIORITY_AUDIO);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Handle of a scheduled task, to cancel it with
+     */
+    public static final class Task {
+        final Object owner;
+        final Runnable action;
+        final long deadline;
+        Task[] slots;
+        int slot;
+        Task prev;
+        Task next;
+        Task ownerPrev;
+        Task ownerNext;
+
+        Task(Object owner, Runnable action, long deadline) {
+            this.owner = owner;
+            this.action = action;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Run an action on the alert thread after a delay
+     * @param owner Groups the task with others to {@link #cancelAll}
+     */
+    public static synchronized Task schedule(Object owner, long delayMs, Runnable action) {
+        long now = SystemClock.uptimeMillis();
+        if (taskCount == 0) {
+            // Nothing to expire in between, so the wheel can jump to now
+            currentTick = Math.max(currentTick, (now - baseTime) / TICK_MS);
+        }
+        long deadline = Math.max(currentTick + 1, (now + delayMs - baseTime + TICK_MS - 1) / TICK_MS);
+        Task task = new Task(owner, action, deadline);
+        place(task);
+        linkOwner(task);
+        taskCount++;
+        rearm();
+        return task;
+    }
+
+    /**
+     * Run an action on the alert thread as soon as possible
+     */
+    public static void post(Runnable action) {
+        handler.post(action);
+    }
+
+    /**
+     * Handler of the alert thread, for callbacks that have to arrive there
+     */
+    public static Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Cancel a task, if it hasn't run yet
+     */
+    public static synchronized void cancel(Task task) {
+        if (task == null || task.slots == null) {
+            return;
+        }
+        unlink(task);
+        unlinkOwner(task);
+        taskCount--;
+    }
+
+    /**
+     * Cancel every task of an owner that hasn't run yet
+     */
+    public static synchronized void cancelAll(Object owner) {
+        Task task = byOwner.remove(owner);
+        while (task != null) {
+            Task next = task.ownerNext;
+            unlink(task);
+            task.ownerPrev = null;
+            task.ownerNext = null;
+            taskCount--;
+            task = next;
+        }
+    }
+
+    private static void advance() {
+        synchronized (AlertScheduler.class) {
+            wakeTick = -1;
+            long target = (SystemClock.uptimeMillis() - baseTime) / TICK_MS;
+            while (currentTick < target && taskCount > expired.size()) {
+                currentTick++;
+                int index = (int) (currentTick & (LEVEL0_SIZE - 1));
+                if (index == 0) {
+                    int index1 = (int) ((currentTick >>> LEVEL1_SHIFT) & (LEVEL_SIZE - 1));
+                    if (index1 == 0) {
+                        cascade(level2, (int) ((currentTick >>> LEVEL2_SHIFT) & (LEVEL_SIZE - 1)));
+                    }
+                    cascade(level1, index1);
+                }
+                Task task;
+                while ((task = level0[index]) != null) {
+                    unlink(task);
+                    unlinkOwner(task);
+                    expired.add(task);
+                }
+            }
+            if (taskCount == expired.size()) {
+                currentTick = Math.max(currentTick, target);
+            }
+            taskCount -= expired.size();
+            rearm();
+        }
+
+        for (int i = 0; i < expired.size(); i++) {
+            try {
+                expired.get(i).action.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Alert task failed", e);
+            }
+        }
+        expired.clear();
+    }
+
+    /**
+     * Move the tasks of an outer slot down to where they belong now
+     */
+    private static void cascade(Task[] level, int index) {
+        Task task = level[index];
+        level[index] = null;
+        while (task != null) {
+            Task next = task.next;
+            task.prev = null;
+            task.next = null;
+            place(task);
+            task = next;
+        }
+    }
+
+    private static void place(Task task) {
+        long ticks = task.deadline - currentTick;
+        if (ticks < LEVEL0_SIZE) {
+            link(task, level0, (int) (task.deadline & (LEVEL0_SIZE - 1)));
+        } else if (ticks < LEVEL1_SPAN) {
+            link(task, level1, (int) ((task.deadline >>> LEVEL1_SHIFT) & (LEVEL_SIZE - 1)));
+        } else {
+            long placed = Math.min(task.deadline, currentTick + LEVEL2_SPAN - 1);
+            link(task, level2, (int) ((placed >>> LEVEL2_SHIFT) & (LEVEL_SIZE - 1)));
+        }
+    }
+
+    /**
+     * Wake the alert thread for the next occupied tick, or for the next cascade if the
+     * innermost level is empty until then
+     */
+    private static void rearm() {
+        if (taskCount == 0) {
+            if (wakeTick >= 0) {
+                handler.removeCallbacks(tick);
+                wakeTick = -1;
+            }
+            return;
+        }
+        long next = currentTick + 1;
+        long wrap = (currentTick | (LEVEL0_SIZE - 1)) + 1;
+        while (next < wrap && level0[(int) (next & (LEVEL0_SIZE - 1))] == null) {
+            next++;
+        }
+        if (next == wakeTick) {
+            return;
+        }
+        handler.removeCallbacks(tick);
+        handler.postAtTime(tick, baseTime + next * TICK_MS);
+        wakeTick = next;
+    }
+
+    private static void link(Task task, Task[] slots, int slot) {
+        task.slots = slots;
+        task.slot = slot;
+        task.prev = null;
+        task.next = slots[slot];
+        if (task.next != null) task.next.prev = task;
+        slots[slot] = task;
+    }
+
+    private static void unlink(Task task) {
+        if (task.prev != null) {
+            task.prev.next = task.next;
+        } else {
+            task.slots[task.slot] = task.next;
+        }
+        if (task.next != null) task.next.prev = task.prev;
+        task.slots = null;
+        task.prev = null;
+        task.next = null;
+    }
+
+    private static void linkOwner(Task task) {
+        Task head = byOwner.put(task.owner, task);
+        task.ownerNext = head;
+        if (head != null) head.ownerPrev = task;
+    }
+
+    private static void unlinkOwner(Task task) {
+        if (task.ownerPrev != null) {
+            task.ownerPrev.ownerNext = task.ownerNext;
+        } else if (task.ownerNext != null) {
+            byOwner.put(task.owner, task.ownerNext);
+        } else {
+            byOwner.remove(task.owner);
+        }
+        if (task.ownerNext != null) task.ownerNext.ownerPrev = task.ownerPrev;
+        task.ownerPrev = null;
+        task.ownerNext = null;
+    }
+}
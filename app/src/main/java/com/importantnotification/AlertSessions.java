@@ -0,0 +1,264 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Registry of the alerts currently sounding, keyed by kind of alert and sender.
+ *
+ * A session owns everything an alert started: the beep sequence, its {@link VolumeLeases}
+ * lease on the boosted media volume and the delayed release of that lease. Repeated alerts
+ * from the same sender within the burst window are folded into the running session, so a
+ * message storm keeps one boost and one beep sequence. The beeps themselves go through
+ * {@link AlertArbiter}, which lets one sequence play at a time.
+ * Ending a session early (call answered or ended, notification dismissed or stopped, message
+ * read in the SMS app) stops the beeps and releases the lease right away instead of letting
+ * the sequence run out.
+ */
+public class AlertSessions {
+    private static final String TAG = "AlertSessions";
+
+    public static final int SMS = ToneEngine.SMS;
+    public static final int CALL = ToneEngine.CALL;
+
+    private static final Map<String, Session> sessions = new HashMap<>();
+
+    // Watches for SMS alerts being read while any are active
+    private static Context appContext;
+    private static ContentObserver smsObserver;
+    private static final ExecutorService readCheckExecutor = Executors.newSingleThreadExecutor();
+
+    private static class Session implements AlertArbiter.Listener {
+        final int kind;
+        final String sender;
+        final String address;
+        final AlertConfig.BeepPlan plan;
+        int events = 1;
+        long lastEventAt;
+        VolumeLeases.Lease lease;
+        // Pending end of the session once its beeps are over
+        AlertScheduler.Task finishTask;
+        // Set once the message shows up unread, so a provider change before it is stored isn't taken as read
+        volatile boolean seenUnread;
+
+        Session(int kind, String sender, String address, AlertConfig.BeepPlan plan) {
+            this.kind = kind;
+            this.sender = sender;
+            this.address = address;
+            this.plan = plan;
+        }
+
+        @Override
+        public void onSequenceDone() {
+            synchronized (AlertSessions.class) {
+                // A burst may have queued another sequence since this one finished
+                if (!AlertArbiter.isActive(this)) {
+                    finishTask = AlertScheduler.schedule(this, plan.getRestoreMargin(), this::finish);
+                }
+            }
+        }
+
+        void finish() {
+            synchronized (AlertSessions.class) {
+                if (AlertArbiter.isActive(this)) {
+                    return; // Extended as the restore came due
+                }
+            }
+            end(this, false);
+        }
+    }
+
+    /**
+     * Start an alert: boost the media volume if notifications are muted, play the beep
+     * sequence once the arbiter gives it the output and restore the volume after it.
+     *
+     * An alert from a sender whose previous alert of the same kind is still running and came
+     * within the burst window joins that session instead: the boost is kept, the beeps
+     * are only started again if they have finished, and the session is extended. Outside the
+     * window the running alert is replaced.
+     * @param sender Cleaned number the alert is for
+     * @param address Originating address as received, to find the message in the SMS provider
+     * @return How many alerts the session has coalesced, including this one
+     */
+    public static int start(Context context, int kind, String sender, String address, AlertConfig config) {
+        AlertConfig.BeepPlan plan = kind == CALL ? config.getCallPlan() : config.getSmsPlan();
+        long now = SystemClock.uptimeMillis();
+
+        Session session;
+        boolean extended = false;
+        synchronized (AlertSessions.class) {
+            Session previous = sessions.get(key(kind, sender));
+            if (previous != null && now - previous.lastEventAt <= config.getBurstWindow()) {
+                session = previous;
+                session.events++;
+                extended = true;
+            } else {
+                session = new Session(kind, sender, address, plan);
+                // Lease before ending the previous session, so the volume doesn't dip in between
+                session.lease = VolumeLeases.acquire(context, config);
+                if (previous != null) {
+                    end(previous, true);
+                }
+                sessions.put(key(kind, sender), session);
+            }
+            session.lastEventAt = now;
+
+            // A burst keeps one beep sequence going rather than restarting it per message
+            if (!AlertArbiter.isActive(session)) {
+                AlertScheduler.cancel(session.finishTask);
+                AlertArbiter.request(context, session, kind, session.plan, session);
+            }
+        }
+        Log.d(TAG, "Alert session " + (extended ? "extended" : "started") + " for " + sender
+            + " (" + session.events + (session.events == 1 ? " alert)" : " alerts)"));
+
+        if (kind == SMS) {
+            Context appContext = context.getApplicationContext();
+            watchSmsReads(appContext);
+            // The SMS app may have stored the message before the observer was registered
+            readCheckExecutor.execute(() -> checkSmsReads(appContext));
+        }
+        return session.events;
+    }
+
+    /**
+     * Count an alert that is shown but not sounded, such as one over the sender's rate limit
+     * @return How many alerts the sender's running session now holds, or 0 if none is running
+     */
+    public static synchronized int countSilent(int kind, String sender) {
+        Session session = sessions.get(key(kind, sender));
+        return session != null ? ++session.events : 0;
+    }
+
+    /**
+     * End the alert of the given kind from a sender now, if one is running
+     */
+    public static void cancel(int kind, String sender) {
+        Session session;
+        synchronized (AlertSessions.class) {
+            session = sessions.get(key(kind, sender));
+        }
+        if (session != null) {
+            Log.d(TAG, "Cancelling alert for " + sender);
+            end(session, true);
+        }
+    }
+
+    /**
+     * End every running alert of the given kind now
+     */
+    public static void cancelAll(int kind) {
+        List<Session> cancelled = new ArrayList<>();
+        synchronized (AlertSessions.class) {
+            for (Session session : sessions.values()) {
+                if (session.kind == kind) cancelled.add(session);
+            }
+        }
+        for (Session session : cancelled) {
+            Log.d(TAG, "Cancelling alert for " + session.sender);
+            end(session, true);
+        }
+    }
+
+    private static void end(Session session, boolean cancelled) {
+        synchronized (AlertSessions.class) {
+            if (sessions.get(key(session.kind, session.sender)) != session) {
+                return; // Already ended
+            }
+            sessions.remove(key(session.kind, session.sender));
+            AlertArbiter.cancel(session);
+            if (session.kind == SMS && !hasSessions(SMS)) {
+                stopWatchingSmsReads();
+            }
+        }
+        // The session's restore and anything else it still had scheduled
+        AlertScheduler.cancelAll(session);
+        if (session.lease != null) {
+            session.lease.release();
+        }
+        Log.d(TAG, "Alert session for " + session.sender + (cancelled ? " cancelled" : " finished"));
+    }
+
+    // ---- SMS read detection ----
+
+    /**
+     * Opening the conversation in the SMS app marks the message read, which ends its alert
+     */
+    private static synchronized void watchSmsReads(Context context) {
+        if (smsObserver != null) {
+            return;
+        }
+        appContext = context;
+        smsObserver = new ContentObserver(AlertScheduler.getHandler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                readCheckExecutor.execute(() -> checkSmsReads(context));
+            }
+        };
+        try {
+            context.getContentResolver().registerContentObserver(Telephony.Sms.CONTENT_URI, true, smsObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Can't watch the SMS provider, alerts end on their own", e);
+            smsObserver = null;
+        }
+    }
+
+    private static void stopWatchingSmsReads() {
+        if (smsObserver != null) {
+            appContext.getContentResolver().unregisterContentObserver(smsObserver);
+            smsObserver = null;
+        }
+    }
+
+    private static void checkSmsReads(Context context) {
+        List<Session> active = new ArrayList<>();
+        synchronized (AlertSessions.class) {
+            for (Session session : sessions.values()) {
+                if (session.kind == SMS && session.address != null) active.add(session);
+            }
+        }
+
+        for (Session session : active) {
+            int unread;
+            try (Cursor cursor = context.getContentResolver().query(Telephony.Sms.Inbox.CONTENT_URI,
+                    new String[]{Telephony.Sms._ID},
+                    Telephony.Sms.ADDRESS + " = ? AND " + Telephony.Sms.READ + " = 0",
+                    new String[]{session.address}, null)) {
+                if (cursor == null) continue;
+                unread = cursor.getCount();
+            } catch (SecurityException e) {
+                Log.w(TAG, "Can't read the SMS provider", e);
+                return;
+            }
+
+            if (unread > 0) {
+                session.seenUnread = true;
+            } else if (session.seenUnread) {
+                Log.d(TAG, "SMS from " + session.sender + " was read");
+                end(session, true);
+            }
+        }
+    }
+
+    private static boolean hasSessions(int kind) {
+        for (Session session : sessions.values()) {
+            if (session.kind == kind) return true;
+        }
+        return false;
+    }
+
+    private static String key(int kind, String sender) {
+        return kind + ":" + sender;
+    }
+}
@@ -4,11 +4,10 @@ import android.content.Context;
 import android.content.SharedPreferences;
 
 /**
- * Helper class to access app settings consistently across all components
+ * Helper class to access app settings consistently across all components.
+ * Alert paths should use the {@link AlertConfig} snapshot instead of reading settings one by one.
  */
 public class AppSettings {
-    private static final String SETTINGS_PREFS = "ImportantNotificationSettings";
-    
     // Default values from SettingsActivity
     public static final int DEFAULT_VOLUME_LEVEL = 8;
     public static final int DEFAULT_BEEP_COUNT = 15;
@@ -17,9 +16,14 @@ public class AppSettings {
     public static final int DEFAULT_CALL_BEEP_DURATION = 500;
     public static final int DEFAULT_CALL_INTERVAL = 600;
     public static final boolean DEFAULT_SERVICE_ENABLED = true;
+    public static final int DEFAULT_BURST_WINDOW = 60000;
+    public static final int DEFAULT_SMS_BURST_LIMIT = 5;
+    public static final int DEFAULT_SMS_REFILL_RATE = 2;
+    public static final int DEFAULT_REPEAT_CALL_THRESHOLD = 3;
+    public static final int DEFAULT_REPEAT_CALL_WINDOW = 5 * 60000;
     
     public static SharedPreferences getSettingsPrefs(Context context) {
-        return context.getSharedPreferences(SETTINGS_PREFS, Context.MODE_PRIVATE);
+        return AppStore.get(context);
     }
     
     public static int getVolumeLevel(Context context) {
@@ -64,7 +68,16 @@ public class AppSettings {
      * @return Calculated volume level
      */
     public static int calculateAlertVolume(Context context, int maxVolume) {
-        int volumeLevel = getVolumeLevel(context); // 1-10 scale
+        return calculateAlertVolume(getVolumeLevel(context), maxVolume);
+    }
+    
+    /**
+     * Calculate the actual volume level for AudioManager from a volume setting
+     * @param volumeLevel User volume setting on a 1-10 scale
+     * @param maxVolume Maximum volume from AudioManager.getStreamMaxVolume()
+     * @return Calculated volume level
+     */
+    public static int calculateAlertVolume(int volumeLevel, int maxVolume) {
         int alertVolume = Math.max((maxVolume * volumeLevel) / 10, 3); // Convert to actual volume, minimum of 3
         return alertVolume;
     }
@@ -0,0 +1,993 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.importantnotification.churchmode.ChurchModeSchedule;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Single binary store for all app state: settings, important contacts, number rules and
+ * Church Mode schedules.
+ *
+ * The whole store is one small versioned file that is read once per process, instead of three
+ * SharedPreferences XML files with the schedules as a JSON blob inside one of them. Key/value
+ * state is exposed through the SharedPreferences interface so existing callers and change
+ * listeners keep working; schedules are stored as individual binary records.
+ *
+ * Each change is appended to a log ({@code app_state.log}) as a small checksummed record and
+ * synced, so a schedule edit or a single setting costs a few bytes on disk rather than a
+ * rewrite of everything. Once the log outgrows the snapshot it is folded into a new one:
+ * the whole state goes to a temporary file that is synced and then renamed over the store,
+ * so a crash leaves either the old or the new snapshot on disk, and the snapshot it replaces
+ * is kept as a backup. A store file that can't be decoded is moved aside, together with the
+ * log written against it, and the backup is used instead. The previous preference files are
+ * migrated into the store once, when there is no store yet.
+ */
+public class AppStore implements SharedPreferences {
+    private static final String TAG = "AppStore";
+    private static final String FILE_NAME = "app_state.bin";
+    private static final String BACKUP_SUFFIX = ".bak";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final String LOG_FILE_NAME = "app_state.log";
+
+    private static final int MAGIC = 0x494E5354; // "INST"
+    // Version 2 added schedule recurrence details
+    private static final int FORMAT_VERSION = 2;
+    private static final int LOG_MAGIC = 0x494E4C47; // "INLG"
+    private static final int LOG_HEADER_SIZE = 8;
+    // The log is folded into the snapshot once it is bigger than both this and the snapshot
+    private static final int COMPACT_MIN_BYTES = 16 * 1024;
+
+    /** Change listeners are notified with this key when a schedule is added, edited or removed */
+    public static final String KEY_SCHEDULES = "schedules";
+
+    // Files migrated into the store; the schedules prefs hold a JSON array under KEY_SCHEDULES
+    private static final String[] LEGACY_VALUE_PREFS = {"ImportantContacts", "ImportantNotificationSettings"};
+    private static final String LEGACY_SCHEDULE_PREFS = "church_mode_schedules";
+
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    // Log record types
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_CLEAR = 3;
+    private static final int OP_PUT_SCHEDULE = 4;
+    private static final int OP_REMOVE_SCHEDULE = 5;
+    private static final int OP_UPDATE_SET = 6;
+
+    private static volatile AppStore instance;
+
+    private final File file;
+    private final File backup;
+    private final File logFile;
+    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, ChurchModeSchedule> schedules = new LinkedHashMap<>();
+    // Same contract as SharedPreferences: listeners are only weakly referenced
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Boolean> listeners = new WeakHashMap<>();
+
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Object writeLock = new Object();
+    // Framed log records of the changes not yet on disk, in order, guarded by this
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(256);
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+    // Set when the log can't take the next changes, so the next write saves a full snapshot
+    private volatile boolean snapshotNeeded;
+    // Guarded by writeLock
+    private long logLength;
+    private long snapshotLength;
+    // False when the store file exists but couldn't be read; writing then would replace it
+    private volatile boolean writable = true;
+    // Set when the log was written against a snapshot that is lost and can't be moved aside
+    private boolean logUnusable;
+
+    private AppStore(File file) {
+        this.file = file;
+        this.backup = new File(file.getPath() + BACKUP_SUFFIX);
+        this.logFile = new File(file.getParentFile(), LOG_FILE_NAME);
+    }
+
+    /**
+     * Get the process-wide store, loading it (and migrating older preference files) on first use
+     */
+    public static AppStore get(Context context) {
+        AppStore store = instance;
+        if (store != null) {
+            return store;
+        }
+
+        synchronized (AppStore.class) {
+            if (instance == null) {
+                Context appContext = context.getApplicationContext();
+                AppStore created = new AppStore(new File(appContext.getFilesDir(), FILE_NAME));
+                if (created.load()) {
+                    created.replayLog();
+                } else {
+                    created.migrateFromPreferences(appContext);
+                }
+                instance = created;
+            }
+            return instance;
+        }
+    }
+
+    // ---- Schedules ----
+
+    /**
+     * @return Copies of all Church Mode schedules, in the order they were added
+     */
+    public synchronized List<ChurchModeSchedule> getSchedules() {
+        List<ChurchModeSchedule> copies = new ArrayList<>(schedules.size());
+        for (ChurchModeSchedule schedule : schedules.values()) {
+            copies.add(copyOf(schedule));
+        }
+        return copies;
+    }
+
+    /**
+     * Add a schedule, or replace the stored schedule with the same ID
+     */
+    public void putSchedule(ChurchModeSchedule schedule) {
+        synchronized (this) {
+            ChurchModeSchedule copy = copyOf(schedule);
+            schedules.put(schedule.getId(), copy);
+            logChange(OP_PUT_SCHEDULE, null, copy);
+        }
+        scheduleWrite();
+        notifyListeners(Collections.singletonList(KEY_SCHEDULES));
+    }
+
+    public void removeSchedule(String id) {
+        synchronized (this) {
+            if (schedules.remove(id) == null) {
+                return;
+            }
+            logChange(OP_REMOVE_SCHEDULE, id, null);
+        }
+        scheduleWrite();
+        notifyListeners(Collections.singletonList(KEY_SCHEDULES));
+    }
+
+    // ---- String set updates ----
+
+    /**
+     * Remove and add items of a string set. Only the items that changed are logged, so a
+     * large set can be edited without writing all of it.
+     */
+    public void updateStringSet(String key, Collection<String> removed, Collection<String> added) {
+        synchronized (this) {
+            Object value = values.get(key);
+            Set<String> set = new HashSet<>();
+            if (value instanceof Set) {
+                for (Object item : (Set<?>) value) {
+                    set.add((String) item);
+                }
+            }
+            boolean changed = set.removeAll(removed);
+            changed |= set.addAll(added);
+            if (!changed) {
+                return;
+            }
+            values.put(key, Collections.unmodifiableSet(set));
+            logChange(OP_UPDATE_SET, key, new Collection<?>[]{removed, added});
+        }
+        scheduleWrite();
+        notifyListeners(Collections.singletonList(key));
+    }
+
+    // ---- SharedPreferences ----
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(values);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        Object value = values.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = values.get(key);
+        return value instanceof Set ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        Object value = values.get(key);
+        return value instanceof Integer ? (Integer) value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        Object value = values.get(key);
+        return value instanceof Long ? (Long) value : defValue;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        Object value = values.get(key);
+        return value instanceof Float ? (Float) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Object value = values.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new StoreEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.put(listener, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    private class StoreEditor implements Editor {
+        // A null value marks a removal
+        private final Map<String, Object> changes = new HashMap<>();
+        private boolean clear;
+
+        @Override
+        public Editor putString(String key, String value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            // Callers may keep modifying their set, so store a frozen copy
+            changes.put(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            changes.put(key, null);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            if (!applyToMemory()) {
+                return true;
+            }
+            return writeNow();
+        }
+
+        @Override
+        public void apply() {
+            if (applyToMemory()) {
+                scheduleWrite();
+            }
+        }
+
+        /**
+         * @return Whether anything changed
+         */
+        private boolean applyToMemory() {
+            List<String> changedKeys = new ArrayList<>();
+            synchronized (AppStore.this) {
+                if (clear && !values.isEmpty()) {
+                    changedKeys.addAll(values.keySet());
+                    values.clear();
+                    logChange(OP_CLEAR, null, null);
+                }
+                for (Map.Entry<String, Object> change : changes.entrySet()) {
+                    Object previous = change.getValue() == null
+                        ? values.remove(change.getKey())
+                        : values.put(change.getKey(), change.getValue());
+                    boolean same = previous == null ? change.getValue() == null : previous.equals(change.getValue());
+                    if (same) {
+                        continue;
+                    }
+                    logChange(change.getValue() == null ? OP_REMOVE : OP_PUT, change.getKey(), change.getValue());
+                    if (!changedKeys.contains(change.getKey())) {
+                        changedKeys.add(change.getKey());
+                    }
+                }
+                if (changedKeys.isEmpty()) {
+                    return false;
+                }
+            }
+            notifyListeners(changedKeys);
+            return true;
+        }
+    }
+
+    private void notifyListeners(List<String> changedKeys) {
+        final List<OnSharedPreferenceChangeListener> targets;
+        synchronized (listeners) {
+            if (listeners.isEmpty()) {
+                return;
+            }
+            targets = new ArrayList<>(listeners.keySet());
+        }
+
+        // SharedPreferences listeners are always called on the main thread
+        Runnable notify = () -> {
+            for (String key : changedKeys) {
+                for (OnSharedPreferenceChangeListener listener : targets) {
+                    listener.onSharedPreferenceChanged(this, key);
+                }
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            notify.run();
+        } else {
+            mainHandler.post(notify);
+        }
+    }
+
+    // ---- Persistence ----
+
+    /**
+     * Queue a log record for a change; called with this held, in the order the changes are made
+     * @param op One of the OP_ constants
+     * @param key Value key or schedule ID, unused for OP_CLEAR
+     * @param value New value for OP_PUT, the schedule for OP_PUT_SCHEDULE, the removed and
+     *              added items for OP_UPDATE_SET
+     */
+    private void logChange(int op, String key, Object value) {
+        try {
+            recordBytes.reset();
+            recordOut.writeByte(op);
+            switch (op) {
+                case OP_PUT: writeValue(recordOut, key, value); break;
+                case OP_PUT_SCHEDULE: writeSchedule(recordOut, (ChurchModeSchedule) value); break;
+                case OP_UPDATE_SET:
+                    recordOut.writeUTF(key);
+                    writeStrings(recordOut, ((Collection<?>[]) value)[0]);
+                    writeStrings(recordOut, ((Collection<?>[]) value)[1]);
+                    break;
+                case OP_REMOVE:
+                case OP_REMOVE_SCHEDULE: recordOut.writeUTF(key); break;
+                default: break;
+            }
+            recordOut.flush();
+        } catch (IOException e) {
+            // Can't be logged (e.g. a string too long for a record), the next write saves everything
+            Log.e(TAG, "Error encoding app state change", e);
+            snapshotNeeded = true;
+            return;
+        }
+        byte[] payload = recordBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        try {
+            pendingOut.writeInt(payload.length);
+            pendingOut.write(payload);
+            pendingOut.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // In-memory stream
+        }
+    }
+
+    private void scheduleWrite() {
+        writeExecutor.execute(this::writeNow);
+    }
+
+    /**
+     * Append the changes not yet on disk to the log, and fold the log into a new snapshot once
+     * it has grown past the size of the snapshot.
+     * Writes are serialized, so a queued write that finds nothing new returns immediately.
+     */
+    private boolean writeNow() {
+        if (!writable) {
+            Log.w(TAG, "App state was not read, keeping changes in memory only");
+            return false;
+        }
+        synchronized (writeLock) {
+            if (snapshotNeeded) {
+                return writeSnapshot();
+            }
+            byte[] records;
+            synchronized (this) {
+                if (pending.size() == 0) {
+                    return true;
+                }
+                records = pending.toByteArray();
+                pending.reset();
+            }
+
+            if (!appendToLog(records)) {
+                synchronized (this) {
+                    // Put them back ahead of anything newer, for the next write to retry
+                    byte[] newer = pending.toByteArray();
+                    pending.reset();
+                    pending.write(records, 0, records.length);
+                    pending.write(newer, 0, newer.length);
+                }
+                return false;
+            }
+            if (logLength > COMPACT_MIN_BYTES && logLength > snapshotLength) {
+                writeSnapshot();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Append and sync change records, starting a new log if there is none. Called with writeLock held.
+     */
+    private boolean appendToLog(byte[] records) {
+        try (RandomAccessFile log = new RandomAccessFile(logFile, "rw")) {
+            if (logLength == 0) {
+                log.setLength(0);
+                log.writeInt(LOG_MAGIC);
+                log.writeInt(FORMAT_VERSION);
+                logLength = LOG_HEADER_SIZE;
+            } else if (log.length() != logLength) {
+                // Drop a torn record left by a crash, or by a failed append
+                log.setLength(logLength);
+            }
+            log.seek(logLength);
+            log.write(records);
+            log.getFD().sync();
+            logLength += records.length;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending to app state log", e);
+            return false;
+        }
+    }
+
+    /**
+     * Write the whole state as a new snapshot and start an empty log. Called with writeLock held.
+     * Changes still pending are in the snapshot too; appending them later is harmless, as
+     * replaying a record over a state that already has it changes nothing.
+     */
+    private boolean writeSnapshot() {
+        byte[] data;
+        synchronized (this) {
+            try {
+                data = encode();
+            } catch (IOException e) {
+                Log.e(TAG, "Error encoding app state", e);
+                return false;
+            }
+            snapshotNeeded = false;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing app state", e);
+            temp.delete();
+            snapshotNeeded = true;
+            return false;
+        }
+        if (file.exists() && !file.renameTo(backup)) {
+            Log.w(TAG, "Error keeping app state backup");
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Error replacing app state file");
+            temp.delete();
+            snapshotNeeded = true;
+            return false;
+        }
+        snapshotLength = data.length;
+
+        // Everything logged so far is in the snapshot; a crash before the log is emptied only
+        // means its records are replayed over a state that has them already
+        if (logFile.exists() && !logFile.delete()) {
+            Log.w(TAG, "Error removing app state log");
+        }
+        logLength = 0;
+        Log.d(TAG, "Wrote " + data.length + " bytes of app state");
+        return true;
+    }
+
+    /**
+     * Read the store file, or the backup if the store file is missing or can't be decoded
+     * @return Whether a state was found and read
+     */
+    private boolean load() {
+        boolean snapshotCorrupt = false;
+        try {
+            byte[] data = readFile(file);
+            decode(data);
+            snapshotLength = data.length;
+            Log.d(TAG, "Loaded " + values.size() + " values and " + schedules.size() + " schedules");
+            return true;
+        } catch (FileNotFoundException e) {
+            // A crash between keeping the backup and replacing the file leaves only the backup
+        } catch (CorruptStateException e) {
+            File corrupt = new File(file.getPath() + CORRUPT_SUFFIX);
+            Log.e(TAG, "Unreadable app state, moving it to " + corrupt.getName(), e);
+            values.clear();
+            schedules.clear();
+            if (!file.renameTo(corrupt)) {
+                writable = false;
+                return true;
+            }
+            snapshotCorrupt = true;
+        } catch (IOException e) {
+            // The file may be fine and only the read failed; don't write over it
+            Log.e(TAG, "Error reading app state, keeping changes in memory only", e);
+            writable = false;
+            return true;
+        }
+
+        try {
+            byte[] data = readFile(backup);
+            decode(data);
+            snapshotLength = data.length;
+            Log.w(TAG, "Restored " + values.size() + " values and " + schedules.size() + " schedules from backup");
+            if (snapshotCorrupt) {
+                // The log continues the snapshot that was lost, not the backup; replaying it
+                // would silently mix the two states
+                File aside = new File(logFile.getPath() + CORRUPT_SUFFIX);
+                Log.w(TAG, "Moving the app state log to " + aside.getName() + ", its changes after the backup are lost");
+                if (logFile.exists() && !logFile.renameTo(aside)) {
+                    logUnusable = true;
+                    writable = false;
+                }
+                snapshotNeeded = true;
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Backup app state unusable too", e);
+            values.clear();
+            schedules.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Apply the changes logged since the snapshot was written. Replay stops at the first
+     * incomplete or damaged record, which the next append cuts off.
+     */
+    private void replayLog() {
+        if (logUnusable) {
+            return;
+        }
+        byte[] data;
+        try {
+            data = readFile(logFile);
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading app state log, keeping changes in memory only", e);
+            writable = false;
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version;
+        try {
+            if (data.length < LOG_HEADER_SIZE || in.readInt() != LOG_MAGIC) {
+                throw new IOException("Not an app state log");
+            }
+            version = in.readInt();
+            if (version < 1 || version > FORMAT_VERSION) {
+                throw new IOException("Unsupported app state log version " + version);
+            }
+        } catch (IOException e) {
+            File corrupt = new File(logFile.getPath() + CORRUPT_SUFFIX);
+            Log.e(TAG, "Unreadable app state log, moving it to " + corrupt.getName(), e);
+            if (!logFile.renameTo(corrupt)) {
+                writable = false;
+            }
+            return;
+        }
+        if (version != FORMAT_VERSION) {
+            // Records of this version can't be appended to it; start over from a snapshot
+            snapshotNeeded = true;
+        }
+
+        int valid = LOG_HEADER_SIZE;
+        int records = 0;
+        CRC32 crc = new CRC32();
+        while (data.length - valid >= 8) {
+            int length = readInt(data, valid);
+            if (length <= 0 || length > data.length - valid - 8) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, valid + 4, length);
+            if ((int) crc.getValue() != readInt(data, valid + 4 + length)) {
+                break;
+            }
+            try {
+                applyRecord(new DataInputStream(new ByteArrayInputStream(data, valid + 4, length)), version);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Unreadable app state log record", e);
+                break;
+            }
+            valid += length + 8;
+            records++;
+        }
+        logLength = valid;
+        if (valid < data.length) {
+            Log.w(TAG, "Ignoring " + (data.length - valid) + " bytes at the end of the app state log");
+        }
+        Log.d(TAG, "Replayed " + records + " logged changes");
+    }
+
+    private void applyRecord(DataInputStream in, int version) throws IOException {
+        int op = in.readUnsignedByte();
+        switch (op) {
+            case OP_PUT: readValue(in, values); break;
+            case OP_REMOVE: values.remove(in.readUTF()); break;
+            case OP_CLEAR: values.clear(); break;
+            case OP_PUT_SCHEDULE:
+                ChurchModeSchedule schedule = readSchedule(in, version);
+                schedules.put(schedule.getId(), schedule);
+                break;
+            case OP_REMOVE_SCHEDULE: schedules.remove(in.readUTF()); break;
+            case OP_UPDATE_SET:
+                String key = in.readUTF();
+                Set<String> set = new HashSet<>();
+                if (values.get(key) instanceof Set) {
+                    for (Object item : (Set<?>) values.get(key)) {
+                        set.add((String) item);
+                    }
+                }
+                set.removeAll(readStrings(in));
+                set.addAll(readStrings(in));
+                values.put(key, Collections.unmodifiableSet(set));
+                break;
+            default:
+                throw new IOException("Unknown app state change " + op);
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+            | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    private static byte[] readFile(File source) throws IOException {
+        try (FileInputStream in = new FileInputStream(source)) {
+            byte[] data = new byte[(int) source.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) break;
+                read += count;
+            }
+            return data;
+        }
+    }
+
+    /**
+     * The file was read but its contents aren't a store this version understands
+     */
+    private static class CorruptStateException extends IOException {
+        CorruptStateException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+
+        out.writeInt(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            writeValue(out, entry.getKey(), entry.getValue());
+        }
+
+        out.writeInt(schedules.size());
+        for (ChurchModeSchedule schedule : schedules.values()) {
+            writeSchedule(out, schedule);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void decode(byte[] data) throws IOException {
+        try {
+            decodeState(data);
+        } catch (IOException | RuntimeException e) {
+            throw new CorruptStateException("Undecodable app state", e);
+        }
+    }
+
+    private void decodeState(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an app state file");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("Unsupported app state version " + version);
+        }
+
+        int valueCount = in.readInt();
+        for (int i = 0; i < valueCount; i++) {
+            readValue(in, values);
+        }
+
+        int scheduleCount = in.readInt();
+        for (int i = 0; i < scheduleCount; i++) {
+            ChurchModeSchedule schedule = readSchedule(in, version);
+            schedules.put(schedule.getId(), schedule);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, String key, Object value) throws IOException {
+        if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeUTF(key);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeUTF(key);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeUTF(key);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeUTF(key);
+            out.writeFloat((Float) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF(key);
+            out.writeUTF((String) value);
+        } else {
+            Set<?> set = (Set<?>) value;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeUTF(key);
+            out.writeInt(set.size());
+            for (Object item : set) {
+                out.writeUTF((String) item);
+            }
+        }
+    }
+
+    private static void readValue(DataInputStream in, Map<String, Object> into) throws IOException {
+        byte type = in.readByte();
+        String key = in.readUTF();
+        switch (type) {
+            case TYPE_BOOLEAN: into.put(key, in.readBoolean()); break;
+            case TYPE_INT: into.put(key, in.readInt()); break;
+            case TYPE_LONG: into.put(key, in.readLong()); break;
+            case TYPE_FLOAT: into.put(key, in.readFloat()); break;
+            case TYPE_STRING: into.put(key, in.readUTF()); break;
+            case TYPE_STRING_SET:
+                int size = in.readInt();
+                Set<String> set = new HashSet<>(size * 2);
+                for (int j = 0; j < size; j++) {
+                    set.add(in.readUTF());
+                }
+                into.put(key, Collections.unmodifiableSet(set));
+                break;
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static void writeSchedule(DataOutputStream out, ChurchModeSchedule schedule) throws IOException {
+        out.writeUTF(schedule.getId());
+        out.writeUTF(schedule.getName());
+        int dayMask = 0;
+        for (Integer day : schedule.getDaysOfWeek()) {
+            dayMask |= 1 << (day - 1);
+        }
+        out.writeByte(dayMask);
+        out.writeByte(schedule.getStartHour());
+        out.writeByte(schedule.getStartMinute());
+        out.writeByte(schedule.getEndHour());
+        out.writeByte(schedule.getEndMinute());
+        out.writeUTF(schedule.getRecurrence() == null ? "" : schedule.getRecurrence());
+        out.writeByte(schedule.getWeekOfMonth());
+        out.writeLong(schedule.getAnchorDay());
+        writeDays(out, schedule.getDates());
+        writeDays(out, schedule.getExceptionDates());
+    }
+
+    private static ChurchModeSchedule readSchedule(DataInputStream in, int version) throws IOException {
+        String id = in.readUTF();
+        String name = in.readUTF();
+        int dayMask = in.readUnsignedByte();
+        List<Integer> days = new ArrayList<>();
+        for (int day = 1; day <= 7; day++) {
+            if ((dayMask & (1 << (day - 1))) != 0) {
+                days.add(day);
+            }
+        }
+        int startHour = in.readUnsignedByte();
+        int startMinute = in.readUnsignedByte();
+        int endHour = in.readUnsignedByte();
+        int endMinute = in.readUnsignedByte();
+        String recurrence = in.readUTF();
+        ChurchModeSchedule schedule = new ChurchModeSchedule(id, name, days,
+            startHour, startMinute, endHour, endMinute, recurrence);
+        if (version >= 2) {
+            schedule.setWeekOfMonth(in.readByte());
+            schedule.setAnchorDay(in.readLong());
+            schedule.setDates(readDays(in));
+            schedule.setExceptionDates(readDays(in));
+        }
+        return schedule;
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<?> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (Object item : strings) {
+            out.writeUTF((String) item);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeDays(DataOutputStream out, List<Long> days) throws IOException {
+        out.writeInt(days.size());
+        for (Long day : days) {
+            out.writeLong(day);
+        }
+    }
+
+    private static List<Long> readDays(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Long> days = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            days.add(in.readLong());
+        }
+        return days;
+    }
+
+    /**
+     * Copy everything from the preference files used by older versions, then write the store
+     * and empty the old files. Only runs when there is no usable store file; a log left behind
+     * by such a file is replayed over what was copied.
+     */
+    private void migrateFromPreferences(Context context) {
+        for (String prefsName : LEGACY_VALUE_PREFS) {
+            SharedPreferences legacy = context.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
+            for (Map.Entry<String, ?> entry : legacy.getAll().entrySet()) {
+                Object value = entry.getValue();
+                if (value instanceof Set) {
+                    @SuppressWarnings("unchecked")
+                    Set<String> set = (Set<String>) value;
+                    value = Collections.unmodifiableSet(new HashSet<>(set));
+                }
+                values.put(entry.getKey(), value);
+            }
+        }
+
+        SharedPreferences legacySchedules = context.getSharedPreferences(LEGACY_SCHEDULE_PREFS, Context.MODE_PRIVATE);
+        try {
+            JSONArray arr = new JSONArray(legacySchedules.getString(KEY_SCHEDULES, "[]"));
+            for (int i = 0; i < arr.length(); i++) {
+                ChurchModeSchedule schedule = ChurchModeSchedule.fromJson(arr.getJSONObject(i));
+                schedules.put(schedule.getId(), schedule);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error migrating Church Mode schedules", e);
+        }
+        // Changes logged since a snapshot that was lost still apply on top
+        replayLog();
+
+        boolean written;
+        synchronized (writeLock) {
+            written = writable && writeSnapshot();
+        }
+        if (!written) {
+            // Keep the old files so the migration is retried next time
+            return;
+        }
+        for (String prefsName : LEGACY_VALUE_PREFS) {
+            context.getSharedPreferences(prefsName, Context.MODE_PRIVATE).edit().clear().apply();
+        }
+        legacySchedules.edit().clear().apply();
+        Log.d(TAG, "Migrated " + values.size() + " values and " + schedules.size() + " schedules from preferences");
+    }
+
+    private static ChurchModeSchedule copyOf(ChurchModeSchedule schedule) {
+        ChurchModeSchedule copy = new ChurchModeSchedule(schedule.getId(), schedule.getName(),
+            new ArrayList<>(schedule.getDaysOfWeek()),
+            schedule.getStartHour(), schedule.getStartMinute(),
+            schedule.getEndHour(), schedule.getEndMinute(), schedule.getRecurrence());
+        copy.setWeekOfMonth(schedule.getWeekOfMonth());
+        copy.setAnchorDay(schedule.getAnchorDay());
+        copy.setDates(new ArrayList<>(schedule.getDates()));
+        copy.setExceptionDates(new ArrayList<>(schedule.getExceptionDates()));
+        return copy;
+    }
+}
@@ -0,0 +1,28 @@
+package com.importantnotification;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Restores scheduled work after a reboot or an app update, both of which drop pending alarms.
+ */
+public class BootReceiver extends BroadcastReceiver {
+    private static final String TAG = "BootReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        Log.d(TAG, "Boot receiver triggered with action: " + action);
+
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || Intent.ACTION_MY_PACKAGE_REPLACED.equals(action)) {
+            // Re-arm the next Church Mode transition
+            ChurchModeScheduler.refresh(context);
+
+            // A boost interrupted by the shutdown would otherwise stick
+            VolumeLeases.reconcile(context);
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package com.importantnotification;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.CalendarContract;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Church Mode quiet windows taken from the events of a chosen device calendar.
+ *
+ * Event instances over the same horizon as {@link ChurchModeOccurrences} are kept per event ID
+ * and handed to it as extra quiet windows, so checking Church Mode never queries the calendar
+ * provider. A ContentObserver picks up calendar edits; each sync fingerprints the timing columns
+ * of the events that can have instances within the horizon (selected by start and last date, so
+ * past events and those further out are never read), compares them with the stored ones and
+ * only re-expands the instances of events that changed. As the horizon moves forward only the
+ * newly covered days are read. The instances are cached in a small binary file so a process
+ * restart doesn't re-read the whole calendar.
+ *
+ * Busy, timed events count as quiet windows; all-day, free and cancelled events are ignored.
+ */
+public class ChurchModeCalendar {
+    private static final String TAG = "ChurchModeCalendar";
+
+    /** App store key holding the ID of the calendar whose events silence alerts */
+    public static final String KEY_CALENDAR_ID = "church_mode_calendar_id";
+    /** Display name of the chosen calendar, for the settings screen */
+    public static final String KEY_CALENDAR_NAME = "church_mode_calendar_name";
+    public static final long NO_CALENDAR = -1;
+    // Original event ID of events that are not exceptions to a recurring event
+    private static final long NO_EVENT = -1;
+
+    private static final String CACHE_FILE = "calendar_windows.bin";
+    private static final int CACHE_MAGIC = 0x43414C57; // "CALW"
+    private static final int CACHE_VERSION = 1;
+
+    // The provider sends a burst of notifications per edit, so wait for it to settle
+    private static final long SYNC_DEBOUNCE_MS = 1000;
+    // Keeps IN (...) selections well below SQLite's limits
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final String[] EVENT_PROJECTION = {
+        CalendarContract.Events._ID,
+        CalendarContract.Events.ORIGINAL_ID,
+        CalendarContract.Events.DELETED,
+        CalendarContract.Events.DTSTART,
+        CalendarContract.Events.DTEND,
+        CalendarContract.Events.DURATION,
+        CalendarContract.Events.EVENT_TIMEZONE,
+        CalendarContract.Events.ALL_DAY,
+        CalendarContract.Events.RRULE,
+        CalendarContract.Events.RDATE,
+        CalendarContract.Events.EXRULE,
+        CalendarContract.Events.EXDATE,
+        CalendarContract.Events.ORIGINAL_INSTANCE_TIME,
+        CalendarContract.Events.AVAILABILITY,
+        CalendarContract.Events.STATUS
+    };
+
+    private static final String[] INSTANCE_PROJECTION = {
+        CalendarContract.Instances.EVENT_ID,
+        CalendarContract.Instances.BEGIN,
+        CalendarContract.Instances.END
+    };
+
+    // Only busy, timed, not cancelled instances silence alerts
+    private static final String QUIET_INSTANCES = CalendarContract.Instances.ALL_DAY + " = 0 AND "
+        + CalendarContract.Instances.AVAILABILITY + " != " + CalendarContract.Instances.AVAILABILITY_FREE + " AND "
+        + "(" + CalendarContract.Instances.STATUS + " IS NULL OR "
+        + CalendarContract.Instances.STATUS + " != " + CalendarContract.Instances.STATUS_CANCELED + ")";
+
+    private static final long[] NO_WINDOWS = new long[0];
+
+    private static Context appContext;
+    private static Handler syncHandler;
+    private static ContentObserver calendarObserver;
+    // SharedPreferences only keeps weak references to listeners, so hold on to ours here
+    private static SharedPreferences.OnSharedPreferenceChangeListener calendarListener;
+
+    // Sync state, only touched on the sync thread
+    private static long calendarId = NO_CALENDAR;
+    private static long rangeStart;
+    private static long rangeEnd;
+    private static final Map<Long, EventWindows> events = new HashMap<>();
+
+    // Published for the Church Mode checks: [start, end) pairs, and how far ahead they are known
+    private static volatile long[] windows = NO_WINDOWS;
+    private static volatile long coveredUntil;
+    // The first sync always merges the windows, which may have been restored from the cache
+    private static boolean synced;
+
+    private static final Runnable SYNC_RUNNABLE = () -> sync(appContext);
+
+    /**
+     * Instances of one event within the synced range
+     */
+    private static class EventWindows {
+        final long originalId;
+        final long fingerprint;
+        long[] windows;
+
+        EventWindows(long originalId, long fingerprint, long[] windows) {
+            this.originalId = originalId;
+            this.fingerprint = fingerprint;
+            this.windows = windows;
+        }
+    }
+
+    /**
+     * Start watching the calendar. Safe to call repeatedly; does nothing without READ_CALENDAR.
+     */
+    public static synchronized void start(Context context) {
+        if (calendarObserver != null) {
+            return;
+        }
+        if (context.checkSelfPermission(Manifest.permission.READ_CALENDAR) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "READ_CALENDAR not granted, calendar sync not started");
+            return;
+        }
+
+        appContext = context.getApplicationContext();
+        HandlerThread syncThread = new HandlerThread("ChurchModeCalendar");
+        syncThread.start();
+        syncHandler = new Handler(syncThread.getLooper());
+
+        calendarObserver = new ContentObserver(syncHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                requestSync(SYNC_DEBOUNCE_MS);
+            }
+        };
+        appContext.getContentResolver().registerContentObserver(
+            CalendarContract.CONTENT_URI, true, calendarObserver);
+
+        calendarListener = (changedPrefs, key) -> {
+            if (KEY_CALENDAR_ID.equals(key)) {
+                Log.d(TAG, "Church Mode calendar changed");
+                requestSync(0);
+            }
+        };
+        AppStore.get(appContext).registerOnSharedPreferenceChangeListener(calendarListener);
+
+        // Restore the cached instances, then catch up on edits made while the process was not running
+        syncHandler.post(() -> {
+            loadCache(appContext);
+            sync(appContext);
+        });
+        Log.d(TAG, "Calendar sync started");
+    }
+
+    /**
+     * Quiet windows from the calendar as [start, end) pairs in epoch millis. Never queries the
+     * provider; if the synced range falls short of the Church Mode horizon a sync is requested
+     * and the windows are merged in once it completes.
+     */
+    static long[] getWindows(long now) {
+        if (syncHandler != null && coveredUntil < horizonEnd(now)) {
+            requestSync(0);
+        }
+        return windows;
+    }
+
+    /**
+     * @return The calendars that can be chosen, by ID with their display names
+     */
+    public static Map<Long, String> queryCalendars(ContentResolver resolver) {
+        Map<Long, String> calendars = new HashMap<>();
+        try (Cursor cursor = resolver.query(CalendarContract.Calendars.CONTENT_URI,
+                new String[]{CalendarContract.Calendars._ID, CalendarContract.Calendars.CALENDAR_DISPLAY_NAME},
+                CalendarContract.Calendars.VISIBLE + " = 1", null,
+                CalendarContract.Calendars.CALENDAR_DISPLAY_NAME)) {
+            while (cursor != null && cursor.moveToNext()) {
+                calendars.put(cursor.getLong(0), cursor.getString(1));
+            }
+        }
+        return calendars;
+    }
+
+    private static void requestSync(long delay) {
+        syncHandler.removeCallbacks(SYNC_RUNNABLE);
+        syncHandler.postDelayed(SYNC_RUNNABLE, delay);
+    }
+
+    private static void sync(Context context) {
+        long now = System.currentTimeMillis();
+        long selected = AppStore.get(context).getLong(KEY_CALENDAR_ID, NO_CALENDAR);
+        long start = horizonStart(now);
+        long end = horizonEnd(now);
+
+        try {
+            boolean changed;
+            if (selected == NO_CALENDAR) {
+                changed = !events.isEmpty() || calendarId != NO_CALENDAR;
+                events.clear();
+                calendarId = NO_CALENDAR;
+                rangeStart = start;
+                rangeEnd = end;
+            } else if (selected != calendarId || rangeEnd <= start || rangeStart > start) {
+                // New calendar, or the clock moved outside the synced range
+                fullSync(context.getContentResolver(), selected, start, end);
+                changed = true;
+            } else {
+                changed = incrementalSync(context.getContentResolver(), start, end);
+            }
+
+            coveredUntil = end;
+            if (changed || !synced) {
+                synced = true;
+                publish();
+                writeCache(context);
+                // Merge the new windows into the Church Mode state
+                ChurchModeUtils.invalidateOccurrences();
+                ChurchModeScheduler.refresh(context);
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "Calendar permission revoked, calendar windows not updated", e);
+            resetSyncState();
+        } catch (Exception e) {
+            Log.e(TAG, "Calendar sync failed", e);
+            resetSyncState();
+        }
+    }
+
+    /**
+     * Forget a partially applied sync so the next one starts over with a full sync.
+     * The published windows stay in place until then.
+     */
+    private static void resetSyncState() {
+        calendarId = NO_CALENDAR;
+        events.clear();
+    }
+
+    /**
+     * Read every event and instance of the calendar over the range
+     */
+    private static void fullSync(ContentResolver resolver, long selected, long start, long end) {
+        events.clear();
+        calendarId = selected;
+        rangeStart = start;
+        rangeEnd = end;
+
+        for (Map.Entry<Long, long[]> event : queryFingerprints(resolver, start, end).entrySet()) {
+            events.put(event.getKey(), new EventWindows(event.getValue()[0], event.getValue()[1], NO_WINDOWS));
+        }
+        addInstances(resolver, CalendarContract.Instances.CALENDAR_ID + " = " + calendarId, start, end, start);
+        Log.d(TAG, "Full calendar sync read " + events.size() + " events");
+    }
+
+    /**
+     * Move the range forward and re-read only the events that changed since the last sync
+     * @return Whether anything changed
+     */
+    private static boolean incrementalSync(ContentResolver resolver, long start, long end) {
+        boolean changed = false;
+
+        // Drop instances that have ended before the range now starts
+        if (start > rangeStart) {
+            for (EventWindows event : events.values()) {
+                dropBefore(event, start);
+            }
+            rangeStart = start;
+            changed = true;
+        }
+
+        // Over the new range, so events coming into it show up as new
+        Map<Long, long[]> fingerprints = queryFingerprints(resolver, start, end);
+        Set<Long> changedIds = new HashSet<>();
+        Iterator<Map.Entry<Long, EventWindows>> cached = events.entrySet().iterator();
+        while (cached.hasNext()) {
+            Map.Entry<Long, EventWindows> event = cached.next();
+            long[] current = fingerprints.get(event.getKey());
+            if (current != null && current[1] == event.getValue().fingerprint) {
+                continue;
+            }
+            // Exceptions also change which instances of their recurring event remain
+            if (event.getValue().originalId != NO_EVENT) changedIds.add(event.getValue().originalId);
+            if (current == null) {
+                cached.remove();
+                changed = true;
+            } else {
+                changedIds.add(event.getKey());
+            }
+        }
+        for (Map.Entry<Long, long[]> event : fingerprints.entrySet()) {
+            if (!events.containsKey(event.getKey())) {
+                changedIds.add(event.getKey());
+                if (event.getValue()[0] != NO_EVENT) changedIds.add(event.getValue()[0]);
+            }
+        }
+        changedIds.retainAll(fingerprints.keySet());
+
+        // Newly covered days, for every event
+        if (end > rangeEnd) {
+            addInstances(resolver, CalendarContract.Instances.CALENDAR_ID + " = " + calendarId,
+                rangeEnd, end, rangeEnd);
+            rangeEnd = end;
+            changed = true;
+        }
+
+        // The whole range, for the events that changed
+        List<Long> ids = new ArrayList<>(changedIds);
+        for (Long id : ids) {
+            long[] current = fingerprints.get(id);
+            events.put(id, new EventWindows(current[0], current[1], NO_WINDOWS));
+        }
+        for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+            String idList = joinIds(ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY)));
+            addInstances(resolver, CalendarContract.Instances.EVENT_ID + " IN (" + idList + ")",
+                rangeStart, rangeEnd, rangeStart);
+        }
+
+        if (!ids.isEmpty()) {
+            Log.d(TAG, "Re-read " + ids.size() + " changed calendar events");
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Fingerprint the events of the calendar that can have instances between start and end,
+     * from the columns that decide their instances. That is every event starting before the end
+     * whose last instance (kept by the provider, null if it repeats forever) ends after the
+     * start, and every exception to an instance originally within the range.
+     * @return Original event ID (or {@link #NO_EVENT}) and fingerprint, by event ID
+     */
+    private static Map<Long, long[]> queryFingerprints(ContentResolver resolver, long start, long end) {
+        String selection = CalendarContract.Events.CALENDAR_ID + " = " + calendarId + " AND (("
+            + CalendarContract.Events.DTSTART + " < " + end + " AND ("
+            + CalendarContract.Events.LAST_DATE + " IS NULL OR " + CalendarContract.Events.LAST_DATE + " > " + start
+            + ")) OR (" + CalendarContract.Events.ORIGINAL_INSTANCE_TIME + " >= " + start + " AND "
+            + CalendarContract.Events.ORIGINAL_INSTANCE_TIME + " < " + end + "))";
+
+        Map<Long, long[]> fingerprints = new HashMap<>();
+        try (Cursor cursor = resolver.query(CalendarContract.Events.CONTENT_URI, EVENT_PROJECTION,
+                selection, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                if (cursor.getInt(2) != 0) continue; // Deleted, waiting for the sync adapter
+                long originalId = cursor.isNull(1) ? NO_EVENT : cursor.getLong(1);
+                long fingerprint = 17;
+                for (int column = 3; column < EVENT_PROJECTION.length; column++) {
+                    String value = cursor.getString(column);
+                    fingerprint = 31 * fingerprint + (value != null ? value.hashCode() : 0);
+                }
+                fingerprints.put(cursor.getLong(0), new long[]{originalId, fingerprint});
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Add the quiet instances matching the selection between begin and end to their events,
+     * skipping instances that start before minBegin (already read with an earlier range)
+     */
+    private static void addInstances(ContentResolver resolver, String selection, long begin, long end, long minBegin) {
+        Uri.Builder uri = CalendarContract.Instances.CONTENT_URI.buildUpon();
+        ContentUris.appendId(uri, begin);
+        ContentUris.appendId(uri, end);
+
+        Map<Long, List<long[]>> added = new HashMap<>();
+        try (Cursor cursor = resolver.query(uri.build(), INSTANCE_PROJECTION,
+                selection + " AND " + QUIET_INSTANCES, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                long instanceBegin = cursor.getLong(1);
+                long instanceEnd = cursor.getLong(2);
+                if (instanceBegin < minBegin || instanceEnd <= instanceBegin) continue;
+
+                List<long[]> eventInstances = added.get(cursor.getLong(0));
+                if (eventInstances == null) {
+                    eventInstances = new ArrayList<>();
+                    added.put(cursor.getLong(0), eventInstances);
+                }
+                eventInstances.add(new long[]{instanceBegin, instanceEnd});
+            }
+        }
+
+        for (Map.Entry<Long, List<long[]>> eventInstances : added.entrySet()) {
+            EventWindows event = events.get(eventInstances.getKey());
+            if (event == null) {
+                // Created after the fingerprints were read; the next sync picks it up properly
+                continue;
+            }
+            long[] merged = new long[event.windows.length + eventInstances.getValue().size() * 2];
+            System.arraycopy(event.windows, 0, merged, 0, event.windows.length);
+            int i = event.windows.length;
+            for (long[] instance : eventInstances.getValue()) {
+                merged[i++] = instance[0];
+                merged[i++] = instance[1];
+            }
+            event.windows = merged;
+        }
+    }
+
+    private static void dropBefore(EventWindows event, long start) {
+        int kept = 0;
+        for (int i = 0; i < event.windows.length; i += 2) {
+            if (event.windows[i + 1] > start) kept += 2;
+        }
+        if (kept == event.windows.length) {
+            return;
+        }
+        long[] remaining = new long[kept];
+        int j = 0;
+        for (int i = 0; i < event.windows.length; i += 2) {
+            if (event.windows[i + 1] > start) {
+                remaining[j++] = event.windows[i];
+                remaining[j++] = event.windows[i + 1];
+            }
+        }
+        event.windows = remaining;
+    }
+
+    private static int countWindows() {
+        int count = 0;
+        for (EventWindows event : events.values()) {
+            count += event.windows.length;
+        }
+        return count;
+    }
+
+    private static void publish() {
+        long[] all = new long[countWindows()];
+        int i = 0;
+        for (EventWindows event : events.values()) {
+            System.arraycopy(event.windows, 0, all, i, event.windows.length);
+            i += event.windows.length;
+        }
+        windows = all;
+        Log.d(TAG, "Calendar has " + all.length / 2 + " quiet windows");
+    }
+
+    /**
+     * Start of the range Church Mode expands: the beginning of yesterday
+     */
+    private static long horizonStart(long now) {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        return today.minusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    /**
+     * End of the range Church Mode expands
+     */
+    private static long horizonEnd(long now) {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        return today.plusDays(ChurchModeOccurrences.HORIZON_DAYS + 1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    // ---- Cache file ----
+
+    private static void loadCache(Context context) {
+        File file = new File(context.getFilesDir(), CACHE_FILE);
+        byte[] data;
+        try (FileInputStream in = new FileInputStream(file)) {
+            data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) break;
+                read += count;
+            }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading calendar cache", e);
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+                Log.w(TAG, "Unknown calendar cache format, ignoring it");
+                return;
+            }
+            long cachedCalendar = in.readLong();
+            long cachedStart = in.readLong();
+            long cachedEnd = in.readLong();
+            int count = in.readInt();
+            Map<Long, EventWindows> cachedEvents = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                long originalId = in.readLong();
+                long fingerprint = in.readLong();
+                long[] eventWindows = new long[in.readInt() * 2];
+                for (int j = 0; j < eventWindows.length; j++) {
+                    eventWindows[j] = in.readLong();
+                }
+                cachedEvents.put(id, new EventWindows(originalId, fingerprint, eventWindows));
+            }
+
+            calendarId = cachedCalendar;
+            rangeStart = cachedStart;
+            rangeEnd = cachedEnd;
+            events.clear();
+            events.putAll(cachedEvents);
+            coveredUntil = cachedEnd;
+            publish();
+        } catch (IOException e) {
+            Log.e(TAG, "Unreadable calendar cache, ignoring it", e);
+        }
+    }
+
+    private static void writeCache(Context context) {
+        File file = new File(context.getFilesDir(), CACHE_FILE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeLong(calendarId);
+            out.writeLong(rangeStart);
+            out.writeLong(rangeEnd);
+            out.writeInt(events.size());
+            for (Map.Entry<Long, EventWindows> event : events.entrySet()) {
+                out.writeLong(event.getKey());
+                out.writeLong(event.getValue().originalId);
+                out.writeLong(event.getValue().fingerprint);
+                out.writeInt(event.getValue().windows.length / 2);
+                for (long time : event.getValue().windows) {
+                    out.writeLong(time);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error encoding calendar cache", e);
+            return;
+        }
+
+        // Same temp file and rename as the app store, so a crash never leaves half a cache
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing calendar cache", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Error replacing calendar cache");
+            temp.delete();
+        }
+    }
+
+    private static String joinIds(Collection<Long> ids) {
+        StringBuilder builder = new StringBuilder();
+        for (Long id : ids) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(id);
+        }
+        return builder.toString();
+    }
+}
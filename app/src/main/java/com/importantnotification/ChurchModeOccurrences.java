@@ -0,0 +1,263 @@
+package com.importantnotification;
+
+import com.importantnotification.churchmode.ChurchModeSchedule;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Church Mode schedules expanded into concrete quiet intervals over a rolling horizon.
+ *
+ * Every schedule's recurrence (weekly, every other week, nth weekday of the month, one-off
+ * dates, minus exception dates) is materialized into time windows from yesterday up to
+ * {@link #HORIZON_DAYS} ahead. The windows are merged into two sorted arrays, so checking a
+ * point in time or finding the next start/end is a binary search however many schedules and
+ * dates are loaded. One-off dates are looked up by binary search too, so years of them only
+ * cost what falls inside the horizon. Windows from other sources, such as the events of a
+ * chosen calendar ({@link ChurchModeCalendar}), are merged into the same arrays.
+ *
+ * Time windows follow the weekly rules Church Mode has always used: the end minute is
+ * included, and a window that crosses midnight covers both ends of each matching date.
+ */
+public class ChurchModeOccurrences {
+    /** How far ahead occurrences are materialized */
+    public static final int HORIZON_DAYS = 60;
+    /** Rebuild once the horizon is closer than this, so upcoming transitions are always known */
+    private static final int MIN_LOOKAHEAD_DAYS = 14;
+
+    /** Next transition when nothing changes within the horizon */
+    public static final long NO_TRANSITION = 0;
+
+    private static final long MINUTE_MS = 60 * 1000L;
+
+    private final ZoneId zone;
+    private final long horizonStart;
+    private final long horizonEnd;
+    // Merged, non-overlapping [starts[i], ends[i]) intervals in epoch millis, sorted by start
+    private final long[] starts;
+    private final long[] ends;
+
+    private ChurchModeOccurrences(ZoneId zone, long horizonStart, long horizonEnd, long[] starts, long[] ends) {
+        this.zone = zone;
+        this.horizonStart = horizonStart;
+        this.horizonEnd = horizonEnd;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Expand the schedules around the given time in the device's current time zone
+     * @param extraWindows Further quiet windows, e.g. calendar events, as [start, end) pairs
+     */
+    public static ChurchModeOccurrences build(Collection<ChurchModeSchedule> schedules, long[] extraWindows, long now) {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDate today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        LocalDate first = today.minusDays(1); // Windows crossing midnight from yesterday
+        LocalDate last = today.plusDays(HORIZON_DAYS);
+
+        IntervalList intervals = new IntervalList();
+        for (ChurchModeSchedule schedule : schedules) {
+            expand(schedule, first, last, zone, intervals);
+        }
+        for (int i = 0; i + 1 < extraWindows.length; i += 2) {
+            intervals.add(extraWindows[i], extraWindows[i + 1]);
+        }
+        return intervals.merge(zone, toMillis(today, 0, zone), toMillis(last.plusDays(1), 0, zone));
+    }
+
+    /**
+     * @return Whether the given time falls in a quiet window
+     */
+    public boolean isActive(long time) {
+        int i = floorIndex(time);
+        return i >= 0 && time < ends[i];
+    }
+
+    /**
+     * @return When Church Mode next turns on or off after the given time,
+     *         or {@link #NO_TRANSITION} if that is beyond the horizon
+     */
+    public long nextTransition(long time) {
+        int i = floorIndex(time);
+        if (i >= 0 && time < ends[i]) {
+            return ends[i] < horizonEnd ? ends[i] : NO_TRANSITION;
+        }
+        return i + 1 < starts.length ? starts[i + 1] : NO_TRANSITION;
+    }
+
+    /**
+     * @return When this expansion should be rebuilt to keep looking far enough ahead
+     */
+    public long getRefreshTime() {
+        return horizonEnd - MIN_LOOKAHEAD_DAYS * 24 * 60 * MINUTE_MS;
+    }
+
+    /**
+     * @return Whether this expansion still covers the given time in the current time zone
+     */
+    public boolean isCurrent(long now) {
+        // The clock may also have been set back past the start of the expansion
+        return now >= horizonStart && now < getRefreshTime() && zone.equals(ZoneId.systemDefault());
+    }
+
+    public int getIntervalCount() {
+        return starts.length;
+    }
+
+    /**
+     * Index of the last interval starting at or before the time, or -1
+     */
+    private int floorIndex(long time) {
+        int i = Arrays.binarySearch(starts, time);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private static void expand(ChurchModeSchedule schedule, LocalDate first, LocalDate last,
+                               ZoneId zone, IntervalList intervals) {
+        long[] exceptions = sortedDays(schedule.getExceptionDates());
+
+        if (ChurchModeSchedule.RECURRENCE_ONE_OFF.equals(schedule.getRecurrence())) {
+            // Only visit the dates inside the horizon
+            long[] dates = sortedDays(schedule.getDates());
+            int from = Arrays.binarySearch(dates, first.toEpochDay());
+            for (int i = from >= 0 ? from : -from - 1; i < dates.length && dates[i] <= last.toEpochDay(); i++) {
+                if (Arrays.binarySearch(exceptions, dates[i]) < 0) {
+                    addWindows(schedule, LocalDate.ofEpochDay(dates[i]), zone, intervals);
+                }
+            }
+            return;
+        }
+
+        int dayMask = 0;
+        for (Integer day : schedule.getDaysOfWeek()) {
+            if (day != null && day >= 1 && day <= 7) dayMask |= 1 << day;
+        }
+        for (LocalDate date = first; !date.isAfter(last); date = date.plusDays(1)) {
+            if ((dayMask & (1 << dayOfWeek(date))) != 0
+                    && occursOn(schedule, date)
+                    && Arrays.binarySearch(exceptions, date.toEpochDay()) < 0) {
+                addWindows(schedule, date, zone, intervals);
+            }
+        }
+    }
+
+    /**
+     * Whether a recurring schedule applies on a date that is one of its selected weekdays
+     */
+    private static boolean occursOn(ChurchModeSchedule schedule, LocalDate date) {
+        String recurrence = schedule.getRecurrence();
+        if (ChurchModeSchedule.RECURRENCE_BIWEEKLY.equals(recurrence)) {
+            return Math.floorMod(sundayWeek(date.toEpochDay()) - sundayWeek(schedule.getAnchorDay()), 2) == 0;
+        }
+        if (ChurchModeSchedule.RECURRENCE_MONTHLY.equals(recurrence)) {
+            if (schedule.getWeekOfMonth() == ChurchModeSchedule.LAST_WEEK) {
+                return date.getDayOfMonth() + 7 > date.lengthOfMonth();
+            }
+            return (date.getDayOfMonth() - 1) / 7 + 1 == schedule.getWeekOfMonth();
+        }
+        // Weekly and custom days
+        return true;
+    }
+
+    private static void addWindows(ChurchModeSchedule schedule, LocalDate date, ZoneId zone, IntervalList intervals) {
+        int start = schedule.getStartHour() * 60 + schedule.getStartMinute();
+        int end = schedule.getEndHour() * 60 + schedule.getEndMinute();
+
+        if (end > start) {
+            // Normal case: start and end on same day, end minute included
+            intervals.add(toMillis(date, start, zone), toMillis(date, end + 1, zone));
+        } else {
+            // Crosses midnight: both ends of the date
+            intervals.add(toMillis(date, 0, zone), toMillis(date, end + 1, zone));
+            intervals.add(toMillis(date, start, zone), toMillis(date.plusDays(1), 0, zone));
+        }
+    }
+
+    /**
+     * Epoch millis of a local time, by calendar date and minute of day so daylight saving
+     * changes don't shift it
+     */
+    private static long toMillis(LocalDate date, int minuteOfDay, ZoneId zone) {
+        if (minuteOfDay >= 24 * 60) {
+            return date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+        LocalDateTime local = date.atTime(minuteOfDay / 60, minuteOfDay % 60);
+        ZoneOffsetTransition gap = zone.getRules().getTransition(local);
+        if (gap != null && gap.isGap()) {
+            // Skipped by a clock change: the window begins/ends once the clock jumps forward
+            return gap.getInstant().toEpochMilli();
+        }
+        return local.atZone(zone).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Calendar.DAY_OF_WEEK numbering: 1 = Sunday, 7 = Saturday
+     */
+    private static int dayOfWeek(LocalDate date) {
+        return date.getDayOfWeek().getValue() % 7 + 1;
+    }
+
+    /**
+     * Index of the Sunday-to-Saturday week containing an epoch day (1970-01-01 was a Thursday)
+     */
+    private static long sundayWeek(long epochDay) {
+        return Math.floorDiv(epochDay + 4, 7);
+    }
+
+    private static long[] sortedDays(List<Long> days) {
+        long[] sorted = new long[days.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = days.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Growable list of raw intervals, merged once all schedules are expanded
+     */
+    private static class IntervalList {
+        private long[] starts = new long[32];
+        private long[] ends = new long[32];
+        private int size;
+
+        void add(long start, long end) {
+            if (end <= start) return;
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        ChurchModeOccurrences merge(ZoneId zone, long horizonStart, long horizonEnd) {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(starts[a], starts[b]));
+
+            long[] mergedStarts = new long[size];
+            long[] mergedEnds = new long[size];
+            int count = 0;
+            for (Integer i : order) {
+                if (count > 0 && starts[i] <= mergedEnds[count - 1]) {
+                    // Overlapping or touching windows form one quiet period
+                    mergedEnds[count - 1] = Math.max(mergedEnds[count - 1], ends[i]);
+                } else {
+                    mergedStarts[count] = starts[i];
+                    mergedEnds[count] = ends[i];
+                    count++;
+                }
+            }
+            return new ChurchModeOccurrences(zone, horizonStart, horizonEnd,
+                Arrays.copyOf(mergedStarts, count), Arrays.copyOf(mergedEnds, count));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.importantnotification;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Recomputes the Church Mode state when a scheduled transition is reached and whenever
+ * the wall clock or time zone changes, since either moves every upcoming transition.
+ */
+public class ChurchModeReceiver extends BroadcastReceiver {
+    private static final String TAG = "ChurchModeReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        Log.d(TAG, "Church Mode receiver triggered with action: " + action);
+
+        if (ChurchModeScheduler.ACTION_TRANSITION.equals(action)
+                || Intent.ACTION_TIME_CHANGED.equals(action)
+                || Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+            ChurchModeScheduler.refresh(context);
+        }
+    }
+}
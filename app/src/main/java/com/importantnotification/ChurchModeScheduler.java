@@ -0,0 +1,172 @@
+package com.importantnotification;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the Church Mode on/off state current without evaluating schedules during alerts.
+ *
+ * Each refresh works out the current state and the next start/end transition from the
+ * expanded schedules, persists both and arms an exact alarm for the transition (or for when
+ * the expansion horizon needs to move forward, if nothing changes before then). Checking
+ * Church Mode is then a field read. The state is also refreshed when the schedules change,
+ * and on boot, clock and time zone changes (see {@link ChurchModeReceiver} and {@link BootReceiver}).
+ */
+public class ChurchModeScheduler {
+    private static final String TAG = "ChurchModeScheduler";
+
+    public static final String ACTION_TRANSITION = "com.importantnotification.CHURCH_MODE_TRANSITION";
+
+    private static final String KEY_ACTIVE = "church_mode_active";
+    private static final String KEY_NEXT_TRANSITION = "church_mode_next_transition";
+    private static final String KEY_NEXT_CHECK = "church_mode_next_check";
+    private static final long NO_TRANSITION = ChurchModeOccurrences.NO_TRANSITION;
+
+    private static volatile boolean active;
+    private static volatile long nextTransition = NO_TRANSITION;
+    // When the state has to be recomputed: the next transition, or the horizon refresh
+    private static volatile long nextCheck;
+    private static volatile boolean loaded;
+
+    private static Context appContext;
+    // SharedPreferences only keeps weak references to listeners, so hold on to ours here
+    private static SharedPreferences.OnSharedPreferenceChangeListener schedulesListener;
+    // Schedule edits are re-expanded here rather than on the main thread that saved them
+    private static final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Refresh the state whenever the schedules are edited. Safe to call repeatedly.
+     */
+    public static synchronized void start(Context context) {
+        if (schedulesListener != null) {
+            return;
+        }
+        appContext = context.getApplicationContext();
+        schedulesListener = (changedPrefs, key) -> {
+            if (AppStore.KEY_SCHEDULES.equals(key)) {
+                Log.d(TAG, "Church Mode schedules changed, recomputing state");
+                ChurchModeUtils.invalidateOccurrences();
+                refreshExecutor.execute(() -> refresh(appContext));
+            }
+        };
+        AppStore.get(appContext).registerOnSharedPreferenceChangeListener(schedulesListener);
+    }
+
+    /**
+     * @return Whether Church Mode is active right now
+     */
+    public static boolean isActive(Context context) {
+        if (!loaded) {
+            load(context);
+        }
+        // Covers an alarm that was missed, e.g. while the process was frozen
+        if (System.currentTimeMillis() >= nextCheck) {
+            refresh(context);
+        }
+        return active;
+    }
+
+    /**
+     * Recompute the current state from the schedules and arm an alarm for the next transition
+     */
+    public static synchronized void refresh(Context context) {
+        long now = System.currentTimeMillis();
+        ChurchModeOccurrences occurrences = ChurchModeUtils.getOccurrences(context, now);
+
+        boolean isActive = occurrences.isActive(now);
+        long transition = occurrences.nextTransition(now);
+        long check = transition != NO_TRANSITION ? transition : occurrences.getRefreshTime();
+
+        // Most refreshes (schedule edits elsewhere in the week, missed alarm checks) change nothing
+        boolean unchanged = loaded && active == isActive && nextTransition == transition && nextCheck == check;
+        active = isActive;
+        nextTransition = transition;
+        nextCheck = check;
+        loaded = true;
+        if (!unchanged) {
+            AppStore.get(context).edit()
+                .putBoolean(KEY_ACTIVE, isActive)
+                .putLong(KEY_NEXT_TRANSITION, transition)
+                .putLong(KEY_NEXT_CHECK, check)
+                .apply();
+        }
+
+        armAlarm(context, check);
+        Log.d(TAG, "Church Mode " + (isActive ? "active" : "inactive") + ", next transition "
+            + (transition == NO_TRANSITION ? "not within the horizon" : formatTransition(transition)));
+    }
+
+    /**
+     * Short status for display, e.g. "Quiet until Sun 11:30"
+     */
+    public static String getStatusText(Context context) {
+        boolean isActive = isActive(context);
+        long transition = nextTransition;
+
+        if (transition == NO_TRANSITION) {
+            return isActive ? "Quiet for the coming weeks" : "No quiet times scheduled";
+        }
+        return (isActive ? "Quiet until " : "Alerts on, quiet from ") + formatTransition(transition);
+    }
+
+    private static synchronized void load(Context context) {
+        if (loaded) {
+            return;
+        }
+        SharedPreferences store = AppStore.get(context);
+        if (!store.contains(KEY_ACTIVE)) {
+            // Never computed on this install
+            refresh(context);
+            return;
+        }
+        active = store.getBoolean(KEY_ACTIVE, false);
+        nextTransition = store.getLong(KEY_NEXT_TRANSITION, NO_TRANSITION);
+        nextCheck = store.getLong(KEY_NEXT_CHECK, 0);
+        loaded = true;
+    }
+
+    private static void armAlarm(Context context, long time) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(context, ChurchModeReceiver.class).setAction(ACTION_TRANSITION);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && !alarmManager.canScheduleExactAlarms()) {
+            // Without the exact alarm permission the transition may be a few minutes late;
+            // isActive() catches up as soon as anything asks
+            Log.w(TAG, "Exact alarms not allowed, using an inexact alarm");
+            alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, time, pendingIntent);
+        } else {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, time, pendingIntent);
+        }
+    }
+
+    private static String formatTransition(long transition) {
+        Calendar time = Calendar.getInstance();
+        time.setTimeInMillis(transition);
+        Calendar today = Calendar.getInstance();
+        String clock = ChurchModeUtils.formatTime(time.get(Calendar.HOUR_OF_DAY), time.get(Calendar.MINUTE));
+
+        boolean sameDay = time.get(Calendar.YEAR) == today.get(Calendar.YEAR)
+            && time.get(Calendar.DAY_OF_YEAR) == today.get(Calendar.DAY_OF_YEAR);
+        if (sameDay) {
+            return clock;
+        }
+        if (transition - today.getTimeInMillis() < 6 * 24 * 60 * 60 * 1000L) {
+            return ChurchModeUtils.getDayName(time.get(Calendar.DAY_OF_WEEK)).substring(0, 3) + " " + clock;
+        }
+        // Further out the weekday alone is ambiguous
+        return new SimpleDateFormat("MMM d", Locale.getDefault()).format(time.getTime()) + " " + clock;
+    }
+}
@@ -0,0 +1,141 @@
+package com.importantnotification;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared, bounded cache of contact display names for caller/sender lookups.
+ *
+ * Both receivers used to run a synchronous PhoneLookup query for every alert. Names are now
+ * cached by cleaned number, including numbers that have no contact, so repeated callers never
+ * touch the ContentResolver. The whole cache is dropped whenever the address book changes.
+ */
+public class ContactNameCache {
+    private static final String TAG = "ContactNameCache";
+    private static final int MAX_ENTRIES = 128;
+
+    // Cached for numbers that are not in the address book
+    private static final String NOT_A_CONTACT = "";
+
+    private static final LruCache<String, String> NAMES = new LruCache<>(MAX_ENTRIES);
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static ContentObserver contactsObserver;
+
+    public interface NameCallback {
+        void onName(String name);
+    }
+
+    /**
+     * Drop cached names whenever the address book changes. Does nothing without READ_CONTACTS.
+     */
+    public static synchronized void start(Context context) {
+        if (contactsObserver != null) {
+            return;
+        }
+        if (context.checkSelfPermission(Manifest.permission.READ_CONTACTS) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "READ_CONTACTS not granted, name cache invalidation not started");
+            return;
+        }
+
+        // No handler: onChange runs on a binder thread, and LruCache is thread-safe
+        contactsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                Log.d(TAG, "Contacts changed, clearing " + NAMES.size() + " cached names");
+                NAMES.evictAll();
+            }
+        };
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+            ContactsContract.Contacts.CONTENT_URI, true, contactsObserver);
+    }
+
+    /**
+     * Get the contact name for a phone number from the device's contacts
+     * @return The display name, the phone number if there is no such contact,
+     *         or "Unknown Contact" for a missing number
+     */
+    public static String getDisplayName(Context context, String phoneNumber) {
+        if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
+            Log.d(TAG, "Contact lookup: phone number is null or empty");
+            return "Unknown Contact";
+        }
+
+        String key = PhoneNumberNormalizer.clean(phoneNumber);
+        String cached = NAMES.get(key);
+        if (cached != null) {
+            Log.d(TAG, "Cached contact name for " + phoneNumber + " (" + getStats() + ")");
+            return cached.isEmpty() ? phoneNumber : cached;
+        }
+
+        String name = queryDisplayName(context, phoneNumber);
+        if (name != null) {
+            // Failed lookups are not cached so they are retried next time
+            NAMES.put(key, name);
+        }
+        Log.d(TAG, "Contact name cache miss for " + phoneNumber + " (" + getStats() + ")");
+
+        // Return the phone number if we can't find a contact name
+        return name != null && !name.isEmpty() ? name : phoneNumber;
+    }
+
+    /**
+     * Look a name up on a background thread, keeping provider I/O off the alert path
+     * @param callback Called on the background thread with the result of {@link #getDisplayName}
+     */
+    public static void refreshAsync(Context context, String phoneNumber, NameCallback callback) {
+        Context appContext = context.getApplicationContext();
+        REFRESH_EXECUTOR.execute(() -> callback.onName(getDisplayName(appContext, phoneNumber)));
+    }
+
+    public static String getStats() {
+        return "hits=" + NAMES.hitCount() + ", misses=" + NAMES.missCount() + ", size=" + NAMES.size();
+    }
+
+    /**
+     * @return The display name, {@link #NOT_A_CONTACT} if the number is not in the address book,
+     *         or null if the lookup failed
+     */
+    private static String queryDisplayName(Context context, String phoneNumber) {
+        Log.d(TAG, "Looking up contact name for: " + phoneNumber);
+
+        try {
+            Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI,
+                                          Uri.encode(phoneNumber));
+
+            Cursor cursor = context.getContentResolver().query(uri,
+                new String[]{ContactsContract.PhoneLookup.DISPLAY_NAME},
+                null, null, null);
+
+            if (cursor != null) {
+                Log.d(TAG, "Contact query returned " + cursor.getCount() + " results");
+                try {
+                    if (cursor.moveToFirst()) {
+                        String name = cursor.getString(0);
+                        Log.d(TAG, "Found contact name: " + name);
+                        if (name != null && !name.trim().isEmpty()) {
+                            return name;
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                Log.d(TAG, "No contact found for number: " + phoneNumber);
+                return NOT_A_CONTACT;
+            }
+            Log.d(TAG, "Contact query returned null cursor");
+        } catch (Exception e) {
+            Log.e(TAG, "Error looking up contact name: " + e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,321 @@
+package com.importantnotification;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps important contacts in step with the device address book.
+ *
+ * Important contacts are tracked by ContactsContract contact ID with all of their numbers.
+ * A ContentObserver picks up address book edits and only the contacts that changed since the
+ * last sync are re-read, using the provider's last-updated and deleted timestamps; only their
+ * entries are rewritten. The time of the last sync is kept in memory, and only stored when a
+ * sync changed something, so a sync that finds nothing doesn't write. The very
+ * first sync (e.g. after upgrading from entries without contact IDs) scans the phone table in
+ * parallel partitions so large address books don't stall it.
+ */
+public class ContactSync {
+    private static final String TAG = "ContactSync";
+    private static final String KEY_LAST_SYNC = "contacts_last_sync";
+
+    // The provider sends a burst of notifications per edit, so wait for it to settle
+    private static final long SYNC_DEBOUNCE_MS = 1000;
+    // Keeps IN (...) selections well below SQLite's limits
+    private static final int MAX_IDS_PER_QUERY = 500;
+    private static final int MAX_SCAN_PARTITIONS = 4;
+
+    private static final String[] PHONE_PROJECTION = {
+        ContactsContract.CommonDataKinds.Phone.CONTACT_ID,
+        ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
+        ContactsContract.CommonDataKinds.Phone.NUMBER
+    };
+
+    private static Context appContext;
+    private static Handler syncHandler;
+    private static ContentObserver contactsObserver;
+    // Set when the address book changed and the stored names may not reflect it yet
+    private static volatile boolean changesPending;
+    // Only used on the sync thread; -1 until read from the store
+    private static long lastSync = -1;
+
+    private static final Runnable SYNC_RUNNABLE = () -> sync(appContext);
+
+    /**
+     * Start watching the address book. Safe to call repeatedly; does nothing without READ_CONTACTS.
+     */
+    public static synchronized void start(Context context) {
+        if (contactsObserver != null) {
+            return;
+        }
+        if (context.checkSelfPermission(Manifest.permission.READ_CONTACTS) != PackageManager.PERMISSION_GRANTED) {
+            Log.w(TAG, "READ_CONTACTS not granted, contact sync not started");
+            return;
+        }
+
+        appContext = context.getApplicationContext();
+        HandlerThread syncThread = new HandlerThread("ContactSync");
+        syncThread.start();
+        syncHandler = new Handler(syncThread.getLooper());
+
+        contactsObserver = new ContentObserver(syncHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changesPending = true;
+                syncHandler.removeCallbacks(SYNC_RUNNABLE);
+                syncHandler.postDelayed(SYNC_RUNNABLE, SYNC_DEBOUNCE_MS);
+            }
+        };
+        appContext.getContentResolver().registerContentObserver(
+            ContactsContract.Contacts.CONTENT_URI, true, contactsObserver);
+
+        // Catch up on anything that changed while the process was not running
+        syncHandler.post(SYNC_RUNNABLE);
+        Log.d(TAG, "Contact sync started");
+    }
+
+    /**
+     * Whether the stored name of a matched contact may be out of date.
+     * Names of synced address book contacts are current unless a sync is pending; entries
+     * without a contact ID (older entries and prefix rule matches) are never synced.
+     */
+    public static boolean isNameStale(ImportantContact contact) {
+        return contact.getContactId() == ImportantContact.NO_CONTACT_ID || changesPending;
+    }
+
+    /**
+     * Query every phone number of the given contacts
+     * @return Numbers grouped by contact ID; contacts without numbers are absent
+     */
+    public static Map<Long, List<ImportantContact>> queryNumbers(ContentResolver resolver, Collection<Long> contactIds) {
+        Map<Long, List<ImportantContact>> numbers = new HashMap<>();
+        List<Long> ids = new ArrayList<>(contactIds);
+
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY));
+            String selection = ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " IN (" + joinIds(chunk) + ")";
+
+            try (Cursor cursor = resolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                    PHONE_PROJECTION, selection, null, null)) {
+                if (cursor == null) continue;
+                while (cursor.moveToNext()) {
+                    ImportantContact number = numberFromRow(cursor);
+                    if (number == null) continue;
+
+                    List<ImportantContact> contactNumbers = numbers.get(number.getContactId());
+                    if (contactNumbers == null) {
+                        contactNumbers = new ArrayList<>();
+                        numbers.put(number.getContactId(), contactNumbers);
+                    }
+                    contactNumbers.add(number);
+                }
+            }
+        }
+        return numbers;
+    }
+
+    private static void sync(Context context) {
+        SharedPreferences prefs = AppStore.get(context);
+        long syncStartedAt = System.currentTimeMillis();
+        if (lastSync < 0) {
+            lastSync = prefs.getLong(KEY_LAST_SYNC, 0);
+        }
+        // Cleared before reading so a change during the sync marks names stale again
+        changesPending = false;
+
+        try {
+            boolean initial = lastSync == 0;
+            boolean changed = initial ? initialSync(context, prefs) : incrementalSync(context, prefs, lastSync);
+            lastSync = syncStartedAt;
+            // A stored time older than this only means re-reading a few contacts after a restart
+            if (initial || changed) {
+                prefs.edit().putLong(KEY_LAST_SYNC, syncStartedAt).apply();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Contact sync failed", e);
+        }
+    }
+
+    /**
+     * Re-read only the tracked contacts that were edited or deleted since the last sync
+     * @return Whether any stored entries changed
+     */
+    private static boolean incrementalSync(Context context, SharedPreferences prefs, long lastSync) {
+        Set<Long> trackedIds = trackedContactIds(prefs);
+        if (trackedIds.isEmpty()) {
+            return false;
+        }
+
+        ContentResolver resolver = context.getContentResolver();
+        String since = String.valueOf(lastSync);
+        Set<Long> changedIds = new HashSet<>();
+        Set<Long> deletedIds = new HashSet<>();
+        List<Long> ids = new ArrayList<>(trackedIds);
+
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+            String idList = joinIds(ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY)));
+
+            try (Cursor cursor = resolver.query(ContactsContract.Contacts.CONTENT_URI,
+                    new String[]{ContactsContract.Contacts._ID},
+                    ContactsContract.Contacts._ID + " IN (" + idList + ") AND "
+                        + ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?",
+                    new String[]{since}, null)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    changedIds.add(cursor.getLong(0));
+                }
+            }
+
+            try (Cursor cursor = resolver.query(ContactsContract.DeletedContacts.CONTENT_URI,
+                    new String[]{ContactsContract.DeletedContacts.CONTACT_ID},
+                    ContactsContract.DeletedContacts.CONTACT_ID + " IN (" + idList + ") AND "
+                        + ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?",
+                    new String[]{since}, null)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    deletedIds.add(cursor.getLong(0));
+                }
+            }
+        }
+
+        if (changedIds.isEmpty() && deletedIds.isEmpty()) {
+            Log.d(TAG, "No tracked contacts changed");
+            return false;
+        }
+
+        Map<Long, List<ImportantContact>> numbers = queryNumbers(resolver, changedIds);
+        Map<Long, List<ImportantContact>> contacts = new HashMap<>();
+        for (Long contactId : deletedIds) {
+            contacts.put(contactId, Collections.<ImportantContact>emptyList());
+        }
+        for (Long contactId : changedIds) {
+            List<ImportantContact> contactNumbers = numbers.get(contactId);
+            contacts.put(contactId, contactNumbers != null ? contactNumbers : Collections.<ImportantContact>emptyList());
+        }
+        boolean changed = ImportantContact.updateEntries(context,
+            entries -> ImportantContact.withContacts(entries, contacts));
+        Log.d(TAG, "Applied " + changedIds.size() + " changed and " + deletedIds.size() + " deleted contacts");
+        return changed;
+    }
+
+    /**
+     * Link every stored entry to its address book contact and pick up all of the contact's numbers.
+     * Entries saved before contacts were tracked by ID are matched on their number.
+     * @return Whether any stored entries changed
+     */
+    private static boolean initialSync(Context context, SharedPreferences prefs) throws Exception {
+        Set<String> entries = prefs.getStringSet(ImportantContact.KEY_CONTACTS, new HashSet<>());
+        Set<Long> contactIds = new HashSet<>();
+        LongHashMap<ImportantContact> unlinkedKeys = new LongHashMap<>(entries.size());
+        for (String entry : entries) {
+            ImportantContact contact = ImportantContact.fromEntry(entry);
+            if (contact == null) continue;
+            if (contact.getContactId() != ImportantContact.NO_CONTACT_ID) {
+                contactIds.add(contact.getContactId());
+            } else if (contact.getMatchKey() != PhoneNumberCanonicalizer.NO_KEY) {
+                unlinkedKeys.put(contact.getMatchKey(), contact);
+            }
+        }
+
+        if (unlinkedKeys.size() > 0) {
+            contactIds.addAll(findContactIdsByNumber(context.getContentResolver(), unlinkedKeys));
+        }
+        if (contactIds.isEmpty()) {
+            return false;
+        }
+
+        Map<Long, List<ImportantContact>> numbers = queryNumbers(context.getContentResolver(), contactIds);
+        boolean changed = ImportantContact.updateEntries(context,
+            current -> ImportantContact.withContacts(current, numbers));
+        Log.d(TAG, "Initial sync linked " + numbers.size() + " contacts");
+        return changed;
+    }
+
+    /**
+     * Scan the whole phone table for the given numbers. The table is split into partitions by
+     * row ID that are queried and canonicalized on separate threads.
+     */
+    private static Set<Long> findContactIdsByNumber(ContentResolver resolver,
+                                                    LongHashMap<ImportantContact> keys) throws Exception {
+        int partitions = Math.max(1, Math.min(MAX_SCAN_PARTITIONS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(partitions);
+        try {
+            List<Future<Set<Long>>> results = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                String selection = ContactsContract.CommonDataKinds.Phone._ID + " % " + partitions + " = " + i;
+                results.add(executor.submit(() -> scanPartition(resolver, selection, keys)));
+            }
+
+            Set<Long> contactIds = new HashSet<>();
+            for (Future<Set<Long>> result : results) {
+                contactIds.addAll(result.get());
+            }
+            return contactIds;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Set<Long> scanPartition(ContentResolver resolver, String selection,
+                                           LongHashMap<ImportantContact> keys) {
+        Set<Long> contactIds = new HashSet<>();
+        try (Cursor cursor = resolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                PHONE_PROJECTION, selection, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                // The key map is only read here, never written, so sharing it across threads is safe
+                ImportantContact number = numberFromRow(cursor);
+                if (number != null && keys.containsKey(number.getMatchKey())) {
+                    contactIds.add(number.getContactId());
+                }
+            }
+        }
+        return contactIds;
+    }
+
+    private static ImportantContact numberFromRow(Cursor cursor) {
+        String rawNumber = cursor.getString(2);
+        if (rawNumber == null) {
+            return null;
+        }
+        ImportantContact number = ImportantContact.create(cursor.getLong(0), cursor.getString(1), rawNumber);
+        return number.getCanonicalNumber().isEmpty() ? null : number;
+    }
+
+    private static Set<Long> trackedContactIds(SharedPreferences prefs) {
+        Set<Long> ids = new HashSet<>();
+        for (String entry : prefs.getStringSet(ImportantContact.KEY_CONTACTS, new HashSet<>())) {
+            ImportantContact contact = ImportantContact.fromEntry(entry);
+            if (contact != null && contact.getContactId() != ImportantContact.NO_CONTACT_ID) {
+                ids.add(contact.getContactId());
+            }
+        }
+        return ids;
+    }
+
+    private static String joinIds(Collection<Long> ids) {
+        StringBuilder builder = new StringBuilder();
+        for (Long id : ids) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(id);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,213 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An important contact as stored in the "important_contacts" StringSet.
+ *
+ * Entries are stored as "Name|CanonicalNumber|MatchKey|ContactId" so the receivers never have to
+ * re-normalize stored numbers. A contact picked from the address book has one entry per phone
+ * number, all sharing its ContactsContract contact ID. Entries without an ID ("Name|Number" or
+ * "Name|CanonicalNumber|MatchKey") are still readable; legacy "Name|Number" entries are
+ * rewritten once by {@link #migrateEntries(SharedPreferences)}.
+ */
+public class ImportantContact {
+    private static final String TAG = "ImportantContact";
+
+    public static final String KEY_CONTACTS = "important_contacts";
+    private static final String KEY_FORMAT_VERSION = "contacts_format_version";
+    private static final int FORMAT_VERSION = 2;
+
+    /** Contact ID for entries that are not linked to an address book contact */
+    public static final long NO_CONTACT_ID = 0;
+
+    private final long contactId;
+    private final String name;
+    private final String canonicalNumber;
+    private final long matchKey;
+
+    public ImportantContact(String name, String canonicalNumber, long matchKey) {
+        this(NO_CONTACT_ID, name, canonicalNumber, matchKey);
+    }
+
+    public ImportantContact(long contactId, String name, String canonicalNumber, long matchKey) {
+        this.contactId = contactId;
+        this.name = name;
+        this.canonicalNumber = canonicalNumber;
+        this.matchKey = matchKey;
+    }
+
+    /**
+     * Create a contact from a number in any format, canonicalizing it once
+     */
+    public static ImportantContact create(String name, String rawNumber) {
+        return create(NO_CONTACT_ID, name, rawNumber);
+    }
+
+    /**
+     * Create an entry for one number of an address book contact
+     */
+    public static ImportantContact create(long contactId, String name, String rawNumber) {
+        String canonical = PhoneNumberCanonicalizer.canonicalize(rawNumber);
+        String safeName = name == null ? canonical : name.replace("|", " ");
+        return new ImportantContact(contactId, safeName, canonical, PhoneNumberCanonicalizer.matchKey(canonical));
+    }
+
+    /**
+     * Parse a stored entry, accepting both the current and the legacy "Name|Number" format
+     * @return The contact, or null if the entry is malformed
+     */
+    public static ImportantContact fromEntry(String entry) {
+        String[] parts = entry.split("\\|");
+        if (parts.length == 4) {
+            try {
+                return new ImportantContact(Long.parseLong(parts[3]), parts[0], parts[1], Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid entry, re-canonicalizing: " + entry);
+                return create(parts[0], parts[1]);
+            }
+        }
+        if (parts.length == 3) {
+            try {
+                return new ImportantContact(parts[0], parts[1], Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid match key in entry, re-canonicalizing: " + entry);
+                return create(parts[0], parts[1]);
+            }
+        }
+        if (parts.length == 2) {
+            return create(parts[0], parts[1]);
+        }
+        return null;
+    }
+
+    public String toEntry() {
+        String entry = name + "|" + canonicalNumber + "|" + matchKey;
+        return contactId == NO_CONTACT_ID ? entry : entry + "|" + contactId;
+    }
+
+    /**
+     * Replace the stored numbers of one contact
+     * @param entries Current stored entries
+     * @param contactId Contact whose entries are replaced, or {@link #NO_CONTACT_ID} to only add
+     * @param numbers The contact's current numbers; empty removes the contact
+     * @return A new entry set. Entries for the same numbers saved under another format are dropped.
+     */
+    public static Set<String> withContact(Set<String> entries, long contactId, Collection<ImportantContact> numbers) {
+        return withContacts(entries, Collections.singletonMap(contactId, numbers));
+    }
+
+    /**
+     * Replace the stored numbers of several contacts in one pass over the entries
+     * @param contacts Current numbers by contact ID, as for {@link #withContact}
+     */
+    public static Set<String> withContacts(Set<String> entries,
+                                           Map<Long, ? extends Collection<ImportantContact>> contacts) {
+        LongHashMap<ImportantContact> newKeys = new LongHashMap<>(contacts.size() * 2);
+        for (Collection<ImportantContact> numbers : contacts.values()) {
+            for (ImportantContact number : numbers) {
+                newKeys.put(number.getMatchKey(), number);
+            }
+        }
+
+        Set<String> updated = new HashSet<>();
+        for (String entry : entries) {
+            ImportantContact existing = fromEntry(entry);
+            if (existing == null) {
+                continue;
+            }
+            boolean sameContact = existing.contactId != NO_CONTACT_ID && contacts.containsKey(existing.contactId);
+            if (!sameContact && !newKeys.containsKey(existing.matchKey)) {
+                updated.add(entry);
+            }
+        }
+        for (Collection<ImportantContact> numbers : contacts.values()) {
+            for (ImportantContact number : numbers) {
+                updated.add(number.toEntry());
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Atomically read, modify and store the entry set.
+     * The activity and the contact sync thread both edit the set, so updates are serialized here.
+     * Only the entries that changed are written, and the lookup index is updated in place.
+     * @return Whether anything changed
+     */
+    public static boolean updateEntries(Context context, EntryUpdate update) {
+        AppStore store = AppStore.get(context);
+        synchronized (ImportantContact.class) {
+            Set<String> stored = store.getStringSet(KEY_CONTACTS, null);
+            Set<String> current = stored != null ? stored : Collections.<String>emptySet();
+            Set<String> updated = update.apply(new HashSet<>(current));
+
+            List<String> removed = new ArrayList<>();
+            for (String entry : current) {
+                if (!updated.contains(entry)) removed.add(entry);
+            }
+            List<String> added = new ArrayList<>();
+            for (String entry : updated) {
+                if (!current.contains(entry)) added.add(entry);
+            }
+            if (removed.isEmpty() && added.isEmpty()) {
+                return false;
+            }
+
+            PhoneNumberIndex.beginChanges();
+            store.updateStringSet(KEY_CONTACTS, removed, added);
+            PhoneNumberIndex.applyChanges(stored, store.getStringSet(KEY_CONTACTS, null), removed, added);
+            return true;
+        }
+    }
+
+    public interface EntryUpdate {
+        Set<String> apply(Set<String> entries);
+    }
+
+    /**
+     * Rewrite legacy "Name|Number" entries into the canonical format. Runs once per install.
+     */
+    public static synchronized void migrateEntries(SharedPreferences prefs) {
+        if (prefs.getInt(KEY_FORMAT_VERSION, 1) >= FORMAT_VERSION) {
+            return;
+        }
+
+        Set<String> entries = prefs.getStringSet(KEY_CONTACTS, new HashSet<>());
+        Set<String> migrated = new HashSet<>();
+        for (String entry : entries) {
+            ImportantContact contact = fromEntry(entry);
+            if (contact != null) {
+                migrated.add(contact.toEntry());
+            } else {
+                Log.w(TAG, "Dropping malformed contact entry: " + entry);
+            }
+        }
+
+        prefs.edit()
+            .putStringSet(KEY_CONTACTS, migrated)
+            .putInt(KEY_FORMAT_VERSION, FORMAT_VERSION)
+            .apply();
+        Log.d(TAG, "Migrated " + migrated.size() + " important contacts to format " + FORMAT_VERSION);
+    }
+
+    public long getContactId() { return contactId; }
+    public String getName() { return name; }
+    public String getCanonicalNumber() { return canonicalNumber; }
+    public long getMatchKey() { return matchKey; }
+
+    @Override
+    public String toString() {
+        return name + "|" + canonicalNumber;
+    }
+}
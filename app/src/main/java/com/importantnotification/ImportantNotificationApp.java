@@ -0,0 +1,31 @@
+package com.importantnotification;
+
+import android.app.Application;
+
+/**
+ * Application entry point, used to start process-wide components that have to
+ * outlive individual activities and receivers.
+ */
+public class ImportantNotificationApp extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Put back a boosted volume left behind if the process was killed mid-alert
+        VolumeLeases.reconcile(this);
+
+        // Keep important contacts in sync with address book edits
+        ContactSync.start(this);
+        ContactNameCache.start(this);
+
+        // Keep the Church Mode state current as schedules and calendar events are edited
+        ChurchModeCalendar.start(this);
+        ChurchModeScheduler.start(this);
+
+        // Build the alert settings snapshot and render the beeps before the first alert needs them
+        AlertConfig config = AlertConfig.get(this);
+        ToneEngine.prepare(ToneEngine.SMS, config.getSmsPlan());
+        ToneEngine.prepare(ToneEngine.CALL, config.getCallPlan());
+    }
+}
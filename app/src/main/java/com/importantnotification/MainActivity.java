@@ -8,8 +8,11 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.ContactsContract;
+import android.text.InputType;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -21,7 +24,12 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MainActivity extends AppCompatActivity {
@@ -30,6 +38,7 @@ public class MainActivity extends AppCompatActivity {
     
     private Button toggleServiceBtn;
     private Button addContactBtn;
+    private Button addRuleBtn;
     private Button settingsBtn;
     private Button churchModeBtn;
     private TextView serviceStatus;
@@ -47,13 +56,17 @@ public class MainActivity extends AppCompatActivity {
         // Initialize views
         toggleServiceBtn = findViewById(R.id.toggle_service_btn);
         addContactBtn = findViewById(R.id.add_contact_btn);
+        addRuleBtn = findViewById(R.id.add_rule_btn);
         settingsBtn = findViewById(R.id.settings_btn);
         serviceStatus = findViewById(R.id.service_status);
         contactsList = findViewById(R.id.contacts_list);
         churchModeBtn = findViewById(R.id.church_mode_btn);
         
-        // Initialize SharedPreferences
-        prefs = getSharedPreferences("ImportantContacts", MODE_PRIVATE);
+        // Contacts, rules and settings all live in the app store
+        prefs = AppStore.get(this);
+        
+        // Convert contacts saved by older versions to the canonical format
+        ImportantContact.migrateEntries(prefs);
         
         // Set up contact picker
         setupContactPicker();
@@ -85,6 +98,7 @@ public class MainActivity extends AppCompatActivity {
     private void setupButtonListeners() {
         toggleServiceBtn.setOnClickListener(v -> toggleService());
         addContactBtn.setOnClickListener(v -> openContactPicker());
+        addRuleBtn.setOnClickListener(v -> showAddRuleDialog());
         settingsBtn.setOnClickListener(v -> openSettings());
         churchModeBtn.setOnClickListener(v -> openChurchMode());
     }
@@ -140,16 +154,15 @@ public class MainActivity extends AppCompatActivity {
             if (cursor != null && cursor.moveToFirst()) {
                 int nameIndex = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME);
                 int numberIndex = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER);
+                int contactIdIndex = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.CONTACT_ID);
                 
                 if (nameIndex >= 0 && numberIndex >= 0) {
                     String name = cursor.getString(nameIndex);
                     String number = cursor.getString(numberIndex);
+                    long contactId = contactIdIndex >= 0 ? cursor.getLong(contactIdIndex) : ImportantContact.NO_CONTACT_ID;
                     
-                    // Normalize phone number (remove spaces, dashes, etc.)
-                    String normalizedNumber = normalizePhoneNumber(number);
-                    
-                    // Save contact
-                    saveContact(name, normalizedNumber);
+                    // Save contact with all of its numbers (numbers are canonicalized on save)
+                    saveContact(contactId, name, number);
                     
                     // Refresh display
                     loadContacts();
@@ -163,18 +176,89 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private void saveContact(String name, String number) {
-        Set<String> contacts = prefs.getStringSet("important_contacts", new HashSet<>());
-        Set<String> updatedContacts = new HashSet<>(contacts);
-        updatedContacts.add(name + "|" + number);
-        prefs.edit().putStringSet("important_contacts", updatedContacts).apply();
+    private void saveContact(long contactId, String name, String pickedNumber) {
+        // Track the contact by ID with every number it has, not just the picked one
+        List<ImportantContact> numbers = null;
+        if (contactId != ImportantContact.NO_CONTACT_ID) {
+            numbers = ContactSync.queryNumbers(getContentResolver(), Collections.singleton(contactId)).get(contactId);
+        }
+        if (numbers == null || numbers.isEmpty()) {
+            // Canonicalize once here so the receivers can match on the precomputed key
+            numbers = Collections.singletonList(ImportantContact.create(contactId, name, pickedNumber));
+        }
+        
+        final List<ImportantContact> contactNumbers = numbers;
+        ImportantContact.updateEntries(this,
+            entries -> ImportantContact.withContact(entries, contactId, contactNumbers));
+        
+        // Start watching the address book now that the contacts permission is available
+        ContactSync.start(this);
     }
     
-    private void removeContact(String contactData) {
-        Set<String> contacts = prefs.getStringSet("important_contacts", new HashSet<>());
-        Set<String> updatedContacts = new HashSet<>(contacts);
-        updatedContacts.remove(contactData);
-        prefs.edit().putStringSet("important_contacts", updatedContacts).apply();
+    private void removeContact(List<String> contactEntries) {
+        ImportantContact.updateEntries(this, entries -> {
+            entries.removeAll(contactEntries);
+            return entries;
+        });
+        loadContacts();
+    }
+    
+    private void showAddRuleDialog() {
+        LinearLayout dialogLayout = new LinearLayout(this);
+        dialogLayout.setOrientation(LinearLayout.VERTICAL);
+        dialogLayout.setPadding(48, 16, 48, 0);
+        
+        EditText prefixInput = new EditText(this);
+        prefixInput.setHint("Number prefix, e.g. 555-123 or +44 20");
+        prefixInput.setInputType(InputType.TYPE_CLASS_PHONE);
+        dialogLayout.addView(prefixInput);
+        
+        EditText labelInput = new EditText(this);
+        labelInput.setHint("Label, e.g. Hospital");
+        labelInput.setInputType(InputType.TYPE_CLASS_TEXT);
+        dialogLayout.addView(labelInput);
+        
+        CheckBox denyCheckBox = new CheckBox(this);
+        denyCheckBox.setText("Never treat these numbers as important");
+        dialogLayout.addView(denyCheckBox);
+        
+        new AlertDialog.Builder(this)
+            .setTitle("Add Number Rule")
+            .setView(dialogLayout)
+            .setPositiveButton("Add", (dialog, which) -> {
+                NumberRule rule = NumberRule.create(denyCheckBox.isChecked(),
+                    prefixInput.getText().toString(), labelInput.getText().toString());
+                if (rule == null) {
+                    Toast.makeText(this, "Enter at least one digit", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                saveRule(rule);
+                loadContacts();
+                Toast.makeText(this, "Added rule: " + rule.getLabel(), Toast.LENGTH_SHORT).show();
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+    
+    private void saveRule(NumberRule rule) {
+        Set<String> rules = prefs.getStringSet(NumberRule.KEY_RULES, new HashSet<>());
+        Set<String> updatedRules = new HashSet<>();
+        for (String entry : rules) {
+            // A new rule replaces any existing rule for the same prefix
+            NumberRule existing = NumberRule.fromEntry(entry);
+            if (existing == null || !existing.getPrefixDigits().equals(rule.getPrefixDigits())) {
+                updatedRules.add(entry);
+            }
+        }
+        updatedRules.add(rule.toEntry());
+        prefs.edit().putStringSet(NumberRule.KEY_RULES, updatedRules).apply();
+    }
+    
+    private void removeRule(String ruleData) {
+        Set<String> rules = prefs.getStringSet(NumberRule.KEY_RULES, new HashSet<>());
+        Set<String> updatedRules = new HashSet<>(rules);
+        updatedRules.remove(ruleData);
+        prefs.edit().putStringSet(NumberRule.KEY_RULES, updatedRules).apply();
         loadContacts();
     }
     
@@ -182,8 +266,9 @@ public class MainActivity extends AppCompatActivity {
         contactsList.removeAllViews();
         
         Set<String> contacts = prefs.getStringSet("important_contacts", new HashSet<>());
+        Set<String> rules = prefs.getStringSet(NumberRule.KEY_RULES, new HashSet<>());
         
-        if (contacts.isEmpty()) {
+        if (contacts.isEmpty() && rules.isEmpty()) {
             TextView emptyView = new TextView(this);
             emptyView.setText("No important contacts added yet");
             emptyView.setTextColor(getColor(android.R.color.darker_gray));
@@ -192,17 +277,73 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
         
-        for (String contact : contacts) {
-            addContactView(contact);
+        // Show each address book contact once, with all of its numbers
+        Map<String, List<String>> groupedContacts = new LinkedHashMap<>();
+        for (String entry : contacts) {
+            ImportantContact contact = ImportantContact.fromEntry(entry);
+            if (contact == null) continue;
+            String groupKey = contact.getContactId() != ImportantContact.NO_CONTACT_ID
+                ? "id:" + contact.getContactId() : entry;
+            List<String> group = groupedContacts.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<>();
+                groupedContacts.put(groupKey, group);
+            }
+            group.add(entry);
+        }
+        
+        for (List<String> contactEntries : groupedContacts.values()) {
+            addContactView(contactEntries);
+        }
+        
+        for (String rule : rules) {
+            addRuleView(rule);
         }
     }
     
-    private void addContactView(String contactData) {
-        String[] parts = contactData.split("\\|");
-        if (parts.length != 2) return;
+    private void addRuleView(String ruleData) {
+        NumberRule rule = NumberRule.fromEntry(ruleData);
+        if (rule == null) return;
+        
+        LinearLayout ruleLayout = new LinearLayout(this);
+        ruleLayout.setOrientation(LinearLayout.HORIZONTAL);
+        ruleLayout.setPadding(16, 8, 16, 8);
+        
+        TextView ruleInfo = new TextView(this);
+        ruleInfo.setText(rule.getLabel() + "\n" + (rule.isDeny() ? "Never important: +" : "All numbers starting +")
+            + rule.getPrefixDigits());
+        ruleInfo.setTextSize(14);
+        LinearLayout.LayoutParams textParams = new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1);
+        ruleInfo.setLayoutParams(textParams);
+        
+        Button removeBtn = new Button(this);
+        removeBtn.setText("Remove");
+        removeBtn.setTextSize(12);
+        removeBtn.setOnClickListener(v -> {
+            new AlertDialog.Builder(this)
+                .setTitle("Remove Rule")
+                .setMessage("Remove the rule for " + rule.getLabel() + "?")
+                .setPositiveButton("Remove", (dialog, which) -> removeRule(ruleData))
+                .setNegativeButton("Cancel", null)
+                .show();
+        });
         
-        String name = parts[0];
-        String number = parts[1];
+        ruleLayout.addView(ruleInfo);
+        ruleLayout.addView(removeBtn);
+        contactsList.addView(ruleLayout);
+    }
+    
+    private void addContactView(List<String> contactEntries) {
+        String name = null;
+        StringBuilder number = new StringBuilder();
+        for (String entry : contactEntries) {
+            ImportantContact contact = ImportantContact.fromEntry(entry);
+            if (name == null) name = contact.getName();
+            if (number.length() > 0) number.append(", ");
+            number.append(contact.getCanonicalNumber());
+        }
+        if (name == null) return;
+        final String contactName = name;
         
         // Create a horizontal layout for each contact
         LinearLayout contactLayout = new LinearLayout(this);
@@ -223,8 +364,8 @@ public class MainActivity extends AppCompatActivity {
         removeBtn.setOnClickListener(v -> {
             new AlertDialog.Builder(this)
                 .setTitle("Remove Contact")
-                .setMessage("Remove " + name + " from important contacts?")
-                .setPositiveButton("Remove", (dialog, which) -> removeContact(contactData))
+                .setMessage("Remove " + contactName + " from important contacts?")
+                .setPositiveButton("Remove", (dialog, which) -> removeContact(contactEntries))
                 .setNegativeButton("Cancel", null)
                 .show();
         });
@@ -248,11 +389,6 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private String normalizePhoneNumber(String number) {
-        // Remove all non-digits except +
-        return number.replaceAll("[^+\\d]", "");
-    }
-    
     private boolean hasRequiredPermissions() {
         return hasContactPermission() && hasPhonePermission() && hasSmsPermission() && hasAudioPermission();
     }
@@ -315,6 +451,8 @@ public class MainActivity extends AppCompatActivity {
             }
             
             if (allGranted) {
+                ContactSync.start(this);
+                ContactNameCache.start(this);
                 Toast.makeText(this, "All permissions granted!", Toast.LENGTH_SHORT).show();
             } else {
                 Toast.makeText(this, "Some permissions denied. App may not work correctly.", Toast.LENGTH_LONG).show();
@@ -0,0 +1,84 @@
+package com.importantnotification;
+
+/**
+ * A prefix rule for important numbers, stored in the "number_rules" StringSet.
+ *
+ * Allow rules make every number starting with the prefix important (e.g. a hospital's PBX
+ * block), deny rules exclude numbers starting with the prefix. Entries are stored as
+ * "allow|Prefix|Label" or "deny|Prefix|Label", where Prefix holds canonical E.164 digits.
+ */
+public class NumberRule {
+    public static final String KEY_RULES = "number_rules";
+
+    private static final String TYPE_ALLOW = "allow";
+    private static final String TYPE_DENY = "deny";
+
+    private final boolean deny;
+    private final String prefixDigits;
+    private final String label;
+    // What an allow rule reports as the matched contact
+    private final ImportantContact matchedContact;
+
+    public NumberRule(boolean deny, String prefixDigits, String label) {
+        this.deny = deny;
+        this.prefixDigits = prefixDigits;
+        this.label = label;
+        this.matchedContact = new ImportantContact(label, "+" + prefixDigits, PhoneNumberCanonicalizer.NO_KEY);
+    }
+
+    /**
+     * Create a rule from a prefix typed by the user.
+     * Prefixes without a '+' are treated as North American, like contact numbers.
+     * @return The rule, or null if the prefix has no digits
+     */
+    public static NumberRule create(boolean deny, String rawPrefix, String label) {
+        String cleaned = PhoneNumberNormalizer.clean(rawPrefix);
+        String digits = cleaned.replace("+", "");
+        if (digits.isEmpty()) {
+            return null;
+        }
+        if (!cleaned.startsWith("+") && !digits.startsWith("1")) {
+            digits = "1" + digits;
+        }
+
+        String ruleLabel = label == null ? "" : label.trim().replace("|", " ");
+        return new NumberRule(deny, digits, ruleLabel.isEmpty() ? "+" + digits : ruleLabel);
+    }
+
+    /**
+     * Parse a stored rule entry
+     * @return The rule, or null if the entry is malformed
+     */
+    public static NumberRule fromEntry(String entry) {
+        String[] parts = entry.split("\\|");
+        if (parts.length != 3 || parts[1].isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < parts[1].length(); i++) {
+            char c = parts[1].charAt(i);
+            if (c < '0' || c > '9') return null;
+        }
+
+        if (TYPE_ALLOW.equals(parts[0])) {
+            return new NumberRule(false, parts[1], parts[2]);
+        }
+        if (TYPE_DENY.equals(parts[0])) {
+            return new NumberRule(true, parts[1], parts[2]);
+        }
+        return null;
+    }
+
+    public String toEntry() {
+        return (deny ? TYPE_DENY : TYPE_ALLOW) + "|" + prefixDigits + "|" + label;
+    }
+
+    public boolean isDeny() { return deny; }
+    public String getPrefixDigits() { return prefixDigits; }
+    public String getLabel() { return label; }
+    public ImportantContact getMatchedContact() { return matchedContact; }
+
+    @Override
+    public String toString() {
+        return (deny ? "Deny +" : "Allow +") + prefixDigits + " (" + label + ")";
+    }
+}
@@ -0,0 +1,88 @@
+package com.importantnotification;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * All allow/deny prefix rules compiled into a single digit automaton.
+ *
+ * Evaluation walks the incoming number's digits once, remembering the deepest rule it passes,
+ * so the cost depends on the length of the number and not on how many rules exist.
+ * The most specific (longest) prefix wins, and deny wins over allow for the same prefix.
+ */
+public class NumberRuleAutomaton {
+    private static final int DIGITS = 10;
+
+    // transitions[state * DIGITS + digit] is the next state, 0 means no transition
+    private int[] transitions;
+    // Rule that ends at each state, or null
+    private NumberRule[] accepting;
+    private int stateCount;
+
+    private NumberRuleAutomaton(int expectedStates) {
+        int capacity = Math.max(expectedStates, 16);
+        transitions = new int[capacity * DIGITS];
+        accepting = new NumberRule[capacity];
+        stateCount = 1; // start state
+    }
+
+    public static NumberRuleAutomaton compile(Collection<NumberRule> rules) {
+        NumberRuleAutomaton automaton = new NumberRuleAutomaton(rules.size() * 6);
+        for (NumberRule rule : rules) {
+            automaton.add(rule);
+        }
+        return automaton;
+    }
+
+    public boolean isEmpty() {
+        return stateCount == 1;
+    }
+
+    /**
+     * Find the rule that applies to a number
+     * @param digits Canonical E.164 digits of the number (country code included)
+     * @param length Number of valid digits
+     * @return The most specific matching rule, or null if no rule applies
+     */
+    public NumberRule evaluate(char[] digits, int length) {
+        NumberRule match = null;
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            state = transitions[state * DIGITS + (digits[i] - '0')];
+            if (state == 0) {
+                break;
+            }
+            if (accepting[state] != null) {
+                match = accepting[state];
+            }
+        }
+        return match;
+    }
+
+    private void add(NumberRule rule) {
+        String prefix = rule.getPrefixDigits();
+        int state = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            int slot = state * DIGITS + (prefix.charAt(i) - '0');
+            if (transitions[slot] == 0) {
+                int next = newState(); // may grow the arrays, so assign afterwards
+                transitions[slot] = next;
+            }
+            state = transitions[slot];
+        }
+
+        NumberRule existing = accepting[state];
+        if (existing == null || (rule.isDeny() && !existing.isDeny())) {
+            accepting[state] = rule;
+        }
+    }
+
+    private int newState() {
+        if (stateCount == accepting.length) {
+            int capacity = stateCount * 2;
+            transitions = Arrays.copyOf(transitions, capacity * DIGITS);
+            accepting = Arrays.copyOf(accepting, capacity);
+        }
+        return stateCount++;
+    }
+}
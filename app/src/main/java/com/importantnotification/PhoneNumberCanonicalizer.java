@@ -0,0 +1,171 @@
+package com.importantnotification;
+
+/**
+ * Converts phone numbers into the canonical form stored for important contacts.
+ *
+ * Numbers are written in E.164 style ("+15551234567") where the country can be inferred.
+ * Like the rest of the app, numbers without a country code are assumed to be North American.
+ * Each canonical number also gets a numeric match key so lookups can compare longs instead of strings.
+ */
+public class PhoneNumberCanonicalizer {
+    private static final int NANP_NATIONAL_LENGTH = 10;
+    private static final int MAX_E164_DIGITS = 15;
+
+    /** Returned by the matchKey methods when a number has no usable digits */
+    public static final long NO_KEY = 0;
+
+    /**
+     * Canonicalize a raw phone number
+     * @param rawNumber Number in any user or carrier format, e.g. "(555) 123-4567"
+     * @return E.164 form when the country is known, otherwise just the digits
+     */
+    public static String canonicalize(String rawNumber) {
+        String cleaned = PhoneNumberNormalizer.clean(rawNumber);
+        boolean international = cleaned.startsWith("+");
+        String digits = international ? cleaned.substring(1).replace("+", "") : cleaned.replace("+", "");
+
+        if (!international && digits.startsWith("011") && digits.length() > 3) {
+            // US international dialing prefix
+            digits = digits.substring(3);
+            international = true;
+        }
+
+        if (international) {
+            return digits.isEmpty() ? "" : "+" + digits;
+        }
+        if (digits.length() == NANP_NATIONAL_LENGTH) {
+            return "+1" + digits;
+        }
+        if (digits.length() == NANP_NATIONAL_LENGTH + 1 && digits.startsWith("1")) {
+            return "+" + digits;
+        }
+
+        // Short codes and local formats we cannot place in a country
+        return digits;
+    }
+
+    /**
+     * Compute the numeric match key for a canonical number.
+     * Numbers with a known country use all of their E.164 digits, country code included.
+     * Numbers without a country get a negative key that also encodes their digit count, so
+     * they never collide with an E.164 number or with each other when leading zeros differ.
+     * @param canonicalNumber Output of {@link #canonicalize(String)}
+     * @return The match key, or {@link #NO_KEY} if the number has no digits or is too long
+     */
+    public static long matchKey(String canonicalNumber) {
+        if (canonicalNumber == null) return NO_KEY;
+        char[] chars = canonicalNumber.toCharArray();
+        return matchKey(chars, chars.length);
+    }
+
+    /**
+     * Compute the match key straight from a cleaned number without allocating.
+     * Gives the same result as {@code matchKey(canonicalize(number))}.
+     * @param cleaned Buffer filled by {@link PhoneNumberNormalizer#cleanInto(CharSequence, char[])}
+     * @param length Number of valid characters in the buffer
+     */
+    public static long matchKey(char[] cleaned, int length) {
+        int digitCount = countDigits(cleaned, length);
+        int form = classify(cleaned, length, digitCount);
+        int skip = form & SKIP_MASK;
+
+        int keyDigits = digitCount - skip;
+        if (keyDigits <= 0 || keyDigits > MAX_E164_DIGITS) {
+            return NO_KEY;
+        }
+
+        // North American numbers keep their country code, which the skipped digits may not include
+        long value = (form & NANP) != 0 ? 1 : 0;
+        int seen = 0;
+        for (int i = 0; i < length; i++) {
+            char c = cleaned[i];
+            if (c == '+') continue;
+            if (seen++ >= skip) {
+                value = value * 10 + (c - '0');
+            }
+        }
+        if ((form & INTERNATIONAL) != 0) {
+            return value == 0 ? NO_KEY : value;
+        }
+        return -(value * 16 + keyDigits) - 1;
+    }
+
+    /**
+     * Write the digits of the canonical E.164 form (country code included, no '+') without allocating.
+     * @param cleaned Buffer filled by {@link PhoneNumberNormalizer#cleanInto(CharSequence, char[])}
+     * @param length Number of valid characters in the buffer
+     * @param out Destination, at least as long as {@code cleaned}
+     * @return Number of digits written, or -1 if the number has no known country
+     */
+    public static int canonicalDigits(char[] cleaned, int length, char[] out) {
+        int digitCount = countDigits(cleaned, length);
+        int form = classify(cleaned, length, digitCount);
+        if ((form & INTERNATIONAL) == 0 || digitCount - (form & SKIP_MASK) > MAX_E164_DIGITS) {
+            return -1;
+        }
+
+        int skip = form & SKIP_MASK;
+        int count = 0;
+        if ((form & NANP) != 0) {
+            out[count++] = '1';
+        }
+        int seen = 0;
+        for (int i = 0; i < length; i++) {
+            char c = cleaned[i];
+            if (c == '+') continue;
+            if (seen++ >= skip) {
+                out[count++] = c;
+            }
+        }
+        return count;
+    }
+
+    // classify() result: number of leading digits outside the national/international part, plus flags
+    private static final int SKIP_MASK = 0xFF;
+    private static final int INTERNATIONAL = 0x100;
+    private static final int NANP = 0x200;
+
+    private static int classify(char[] cleaned, int length, int digitCount) {
+        if (length == 0) return 0;
+
+        boolean international = cleaned[0] == '+';
+        int skip = 0;
+        if (!international && digitCount > 3 && startsWithDigits(cleaned, length, "011")) {
+            // US international dialing prefix
+            international = true;
+            skip = 3;
+        }
+        if (digitCount - skip == NANP_NATIONAL_LENGTH + 1 && digitAt(cleaned, length, skip) == '1') {
+            return (skip + 1) | INTERNATIONAL | NANP;
+        }
+        if (!international && digitCount == NANP_NATIONAL_LENGTH) {
+            return INTERNATIONAL | NANP;
+        }
+        return skip | (international ? INTERNATIONAL : 0);
+    }
+
+    private static int countDigits(char[] cleaned, int length) {
+        int digitCount = 0;
+        for (int i = 0; i < length; i++) {
+            if (cleaned[i] != '+') digitCount++;
+        }
+        return digitCount;
+    }
+
+    private static boolean startsWithDigits(char[] cleaned, int length, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (digitAt(cleaned, length, i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The n-th digit of a cleaned number, skipping any '+' characters
+     */
+    private static char digitAt(char[] cleaned, int length, int n) {
+        for (int i = 0; i < length; i++) {
+            if (cleaned[i] != '+' && n-- == 0) return cleaned[i];
+        }
+        return 0;
+    }
+}
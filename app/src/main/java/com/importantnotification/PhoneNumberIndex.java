@@ -0,0 +1,455 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shared lookup index for the important contacts list.
+ *
+ * Most incoming numbers match through their precomputed numeric key in a primitive hash map.
+ * Anything else falls back to a trie keyed on the reversed stored numbers, so checking an
+ * incoming number walks that number once instead of comparing it against every contact.
+ * The fallback keeps the receivers' original rules: the numbers are equal, or either one ends
+ * with the other after a leading "1" / "+1" country prefix is dropped.
+ *
+ * Allow/deny prefix rules are evaluated alongside in the same lookup through a
+ * {@link NumberRuleAutomaton}. A saved contact wins over prefix rules unless a deny rule
+ * covers the exact number; otherwise the most specific rule decides.
+ *
+ * Edits of the contacts list made through {@link ImportantContact#updateEntries} are applied
+ * to the index in place, touching only the paths of the numbers that changed. Any other change
+ * of the contacts or the rules rebuilds it.
+ */
+public class PhoneNumberIndex {
+    private static final String TAG = "PhoneNumberIndex";
+
+    // Cleaned numbers only contain digits and '+'
+    private static final int ALPHABET_SIZE = 11;
+    private static final int PLUS_SYMBOL = 10;
+
+    private static volatile PhoneNumberIndex instance;
+    // SharedPreferences only keeps weak references to listeners, so hold on to ours here
+    private static SharedPreferences.OnSharedPreferenceChangeListener contactsListener;
+    // Set while an edit is between the store and applyChanges(); all edits hold ImportantContact's lock
+    private static volatile boolean changesPending;
+
+    // Canonical digits of the incoming number, for rule evaluation
+    private static final ThreadLocal<char[]> DIGITS_BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[PhoneNumberNormalizer.MAX_LENGTH + 1];
+        }
+    };
+
+    private final LongHashMap<ImportantContact> contactsByKey;
+    // Every indexed contact by canonical number; the first of each list is the one matched
+    private final Map<String, List<ImportantContact>> contactsByNumber = new HashMap<>();
+    private NumberRuleAutomaton rules;
+    // The stored entry set this index reflects, compared by identity
+    private volatile Set<String> indexedEntries;
+
+    // children[node * ALPHABET_SIZE + symbol] is the child node, 0 means no child (root is never a child)
+    private int[] children;
+    // Contact whose number, without its country prefix, ends exactly at this node
+    private ImportantContact[] terminalContact;
+    // Any contact whose full number passes through this node
+    private ImportantContact[] subtreeContact;
+    // Contact whose full number ends at this node
+    private ImportantContact[] endContact;
+    private int nodeCount;
+
+    private PhoneNumberIndex(int expectedContacts) {
+        int capacity = Math.max(expectedContacts * 12, 16);
+        children = new int[capacity * ALPHABET_SIZE];
+        terminalContact = new ImportantContact[capacity];
+        subtreeContact = new ImportantContact[capacity];
+        endContact = new ImportantContact[capacity];
+        nodeCount = 1; // root
+        contactsByKey = new LongHashMap<>(expectedContacts);
+    }
+
+    /**
+     * Get the index for the current important contacts list.
+     * The index is built on first use and rebuilt after the contacts list changes.
+     */
+    public static PhoneNumberIndex get(Context context) {
+        PhoneNumberIndex index = instance;
+        if (index != null) {
+            return index;
+        }
+
+        synchronized (PhoneNumberIndex.class) {
+            if (instance == null) {
+                SharedPreferences prefs = AppStore.get(context);
+
+                ImportantContact.migrateEntries(prefs);
+
+                if (contactsListener == null) {
+                    contactsListener = (changedPrefs, key) -> {
+                        PhoneNumberIndex current = instance;
+                        boolean contactsReplaced = ImportantContact.KEY_CONTACTS.equals(key) && current != null
+                            && !changesPending && current.indexedEntries != changedPrefs.getStringSet(key, null);
+                        if (contactsReplaced || NumberRule.KEY_RULES.equals(key)) {
+                            Log.d(TAG, "Important contacts or rules changed, index will be rebuilt");
+                            instance = null;
+                        }
+                    };
+                    prefs.registerOnSharedPreferenceChangeListener(contactsListener);
+                }
+
+                Set<String> entries = prefs.getStringSet(ImportantContact.KEY_CONTACTS, null);
+                PhoneNumberIndex built = build(entries != null ? entries : Collections.<String>emptySet(),
+                    prefs.getStringSet(NumberRule.KEY_RULES, new HashSet<>()));
+                built.indexedEntries = entries;
+                instance = built;
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Build an index from stored contact and rule entries
+     */
+    public static PhoneNumberIndex build(Collection<String> entries, Collection<String> ruleEntries) {
+        PhoneNumberIndex index = new PhoneNumberIndex(entries.size());
+        for (String entry : entries) {
+            ImportantContact contact = ImportantContact.fromEntry(entry);
+            if (contact == null || contact.getCanonicalNumber().isEmpty()) {
+                // A number without digits would match everything
+                continue;
+            }
+            index.put(contact);
+        }
+
+        List<NumberRule> rules = new ArrayList<>();
+        for (String ruleEntry : ruleEntries) {
+            NumberRule rule = NumberRule.fromEntry(ruleEntry);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        index.rules = NumberRuleAutomaton.compile(rules);
+
+        Log.d(TAG, "Built index for " + entries.size() + " contacts (" + index.nodeCount + " nodes) and "
+            + rules.size() + " rules");
+        return index;
+    }
+
+    /**
+     * Announce an edit that {@link #applyChanges} will follow, so the change notification
+     * doesn't throw the index away in the meantime
+     */
+    static void beginChanges() {
+        changesPending = true;
+    }
+
+    /**
+     * Bring the index up to date with an edit of the stored entries, without a rebuild
+     * @param previous Entry set the edit was made to, as stored
+     * @param updated Entry set as stored after the edit
+     */
+    static void applyChanges(Set<String> previous, Set<String> updated,
+                             Collection<String> removed, Collection<String> added) {
+        synchronized (PhoneNumberIndex.class) {
+            changesPending = false;
+            PhoneNumberIndex index = instance;
+            if (index == null) {
+                return;
+            }
+            if (index.indexedEntries != previous) {
+                // Built from some other state, so the delta doesn't apply
+                instance = null;
+                return;
+            }
+            synchronized (index) {
+                for (String entry : removed) {
+                    ImportantContact contact = ImportantContact.fromEntry(entry);
+                    if (contact != null) index.remove(contact);
+                }
+                for (String entry : added) {
+                    ImportantContact contact = ImportantContact.fromEntry(entry);
+                    if (contact != null) index.put(contact);
+                }
+                index.indexedEntries = updated;
+            }
+            Log.d(TAG, "Updated index for " + removed.size() + " removed and " + added.size() + " added entries");
+        }
+    }
+
+    /**
+     * Add a contact's number, unless the same entry is already indexed
+     */
+    synchronized void put(ImportantContact contact) {
+        String number = contact.getCanonicalNumber();
+        if (number.isEmpty()) {
+            // A number without digits would match everything
+            return;
+        }
+        List<ImportantContact> sameNumber = contactsByNumber.get(number);
+        if (sameNumber == null) {
+            sameNumber = new ArrayList<>(1);
+            contactsByNumber.put(number, sameNumber);
+        }
+        for (ImportantContact existing : sameNumber) {
+            if (existing.toEntry().equals(contact.toEntry())) return;
+        }
+        sameNumber.add(contact);
+
+        long key = contact.getMatchKey();
+        if (key != PhoneNumberCanonicalizer.NO_KEY && contactsByKey.get(key) == null) {
+            contactsByKey.put(key, contact);
+        }
+        insert(number, contact);
+    }
+
+    /**
+     * Remove a contact's number. Where it was the one matched, another contact with the same
+     * number takes over, or what is left below that trie node.
+     */
+    synchronized void remove(ImportantContact contact) {
+        String number = contact.getCanonicalNumber();
+        List<ImportantContact> sameNumber = contactsByNumber.get(number);
+        if (sameNumber == null) {
+            return;
+        }
+        ImportantContact indexed = null;
+        for (ImportantContact existing : sameNumber) {
+            if (existing.toEntry().equals(contact.toEntry())) {
+                indexed = existing;
+                break;
+            }
+        }
+        if (indexed == null) {
+            return;
+        }
+        sameNumber.remove(indexed);
+        if (sameNumber.isEmpty()) {
+            contactsByNumber.remove(number);
+        }
+        ImportantContact replacement = sameNumber.isEmpty() ? null : sameNumber.get(0);
+
+        long key = indexed.getMatchKey();
+        if (key != PhoneNumberCanonicalizer.NO_KEY && contactsByKey.get(key) == indexed) {
+            if (replacement != null) {
+                contactsByKey.put(key, replacement);
+            } else {
+                contactsByKey.remove(key);
+            }
+        }
+        unlink(number, indexed, replacement);
+    }
+
+    /**
+     * Find the important contact matching a phone number.
+     * The number is cleaned into a per-thread buffer, so lookups do not allocate.
+     * @param phoneNumber Number in any format
+     * @return The matching contact, or null if there is no match
+     */
+    public synchronized ImportantContact findMatch(CharSequence phoneNumber) {
+        if (phoneNumber == null || (nodeCount == 1 && rules.isEmpty())) {
+            return null;
+        }
+
+        char[] number = PhoneNumberNormalizer.threadBuffer();
+        int length = PhoneNumberNormalizer.cleanInto(phoneNumber, number);
+
+        NumberRule rule = null;
+        if (!rules.isEmpty()) {
+            char[] digits = DIGITS_BUFFER.get();
+            int digitCount = PhoneNumberCanonicalizer.canonicalDigits(number, length, digits);
+            rule = rules.evaluate(digits, digitCount);
+            if (rule != null && rule.isDeny() && rule.getPrefixDigits().length() == digitCount) {
+                // Explicitly denied number, even if it is a saved contact
+                return null;
+            }
+        }
+
+        ImportantContact contact = findContact(number, length);
+        if (contact != null) {
+            return contact;
+        }
+        return rule != null && !rule.isDeny() ? rule.getMatchedContact() : null;
+    }
+
+    private ImportantContact findContact(char[] number, int length) {
+        if (nodeCount == 1 || length == 0) {
+            // Alphanumeric senders have no digits and would otherwise suffix-match every contact
+            return null;
+        }
+
+        long key = PhoneNumberCanonicalizer.matchKey(number, length);
+        if (key != PhoneNumberCanonicalizer.NO_KEY) {
+            ImportantContact contact = contactsByKey.get(key);
+            if (contact != null) {
+                return contact;
+            }
+        }
+
+        // Incoming number ends with a stored number (minus its country prefix).
+        // This also covers the two numbers being equal.
+        int node = 0;
+        if (terminalContact[node] != null) {
+            return terminalContact[node];
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            node = children[node * ALPHABET_SIZE + symbolOf(number[i])];
+            if (node == 0) {
+                break;
+            }
+            if (terminalContact[node] != null) {
+                return terminalContact[node];
+            }
+        }
+
+        // A stored number ends with the incoming number (minus its country prefix)
+        node = 0;
+        int start = countryPrefixLength(number, length);
+        for (int i = length - 1; i >= start; i--) {
+            node = children[node * ALPHABET_SIZE + symbolOf(number[i])];
+            if (node == 0) {
+                return null;
+            }
+        }
+        return subtreeContact[node];
+    }
+
+    public boolean isImportant(CharSequence phoneNumber) {
+        return findMatch(phoneNumber) != null;
+    }
+
+    private void insert(String storedNumber, ImportantContact contact) {
+        int strippedLength = storedNumber.length() - countryPrefixLength(storedNumber);
+        int node = 0;
+        int depth = 0;
+        if (subtreeContact[node] == null) {
+            subtreeContact[node] = contact;
+        }
+        if (strippedLength == 0 && terminalContact[node] == null) {
+            terminalContact[node] = contact;
+        }
+
+        for (int i = storedNumber.length() - 1; i >= 0; i--) {
+            int slot = node * ALPHABET_SIZE + symbolOf(storedNumber.charAt(i));
+            if (children[slot] == 0) {
+                int child = newNode(); // may grow the arrays, so assign afterwards
+                children[slot] = child;
+            }
+            node = children[slot];
+            depth++;
+
+            if (subtreeContact[node] == null) {
+                subtreeContact[node] = contact;
+            }
+            if (depth == strippedLength && terminalContact[node] == null) {
+                terminalContact[node] = contact;
+            }
+        }
+        if (endContact[node] == null) {
+            endContact[node] = contact;
+        }
+    }
+
+    /**
+     * Drop a contact from the nodes on its number's path. A replacement with the same number
+     * takes its place; otherwise each node's contacts are worked out again from its end
+     * contact and its children, deepest node first. Nodes left empty stay until the next build.
+     */
+    private void unlink(String storedNumber, ImportantContact contact, ImportantContact replacement) {
+        int[] path = new int[storedNumber.length() + 1];
+        int node = 0;
+        for (int i = storedNumber.length() - 1, depth = 1; i >= 0; i--, depth++) {
+            node = children[node * ALPHABET_SIZE + symbolOf(storedNumber.charAt(i))];
+            if (node == 0) {
+                return;
+            }
+            path[depth] = node;
+        }
+        if (endContact[node] == contact) {
+            endContact[node] = replacement;
+        }
+
+        for (int depth = storedNumber.length(); depth >= 0; depth--) {
+            node = path[depth];
+            if (subtreeContact[node] == contact) {
+                subtreeContact[node] = replacement != null ? replacement : anyContactBelow(node);
+            }
+            if (terminalContact[node] == contact) {
+                terminalContact[node] = replacement != null ? replacement : terminalContactAt(node);
+            }
+        }
+    }
+
+    private ImportantContact anyContactBelow(int node) {
+        if (endContact[node] != null) {
+            return endContact[node];
+        }
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            int child = children[node * ALPHABET_SIZE + symbol];
+            if (child != 0 && subtreeContact[child] != null) {
+                return subtreeContact[child];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A contact whose number without its country prefix ends at a node: one ending there
+     * with no prefix, or one that continues with "1" or "+1"
+     */
+    private ImportantContact terminalContactAt(int node) {
+        ImportantContact own = endContact[node];
+        if (own != null && countryPrefixLength(own.getCanonicalNumber()) == 0) {
+            return own;
+        }
+        int one = children[node * ALPHABET_SIZE + 1];
+        if (one == 0) {
+            return null;
+        }
+        if (endContact[one] != null) {
+            return endContact[one];
+        }
+        int plus = children[one * ALPHABET_SIZE + PLUS_SYMBOL];
+        return plus != 0 ? endContact[plus] : null;
+    }
+
+    private int newNode() {
+        if (nodeCount == terminalContact.length) {
+            int capacity = nodeCount * 2;
+            children = Arrays.copyOf(children, capacity * ALPHABET_SIZE);
+            terminalContact = Arrays.copyOf(terminalContact, capacity);
+            subtreeContact = Arrays.copyOf(subtreeContact, capacity);
+            endContact = Arrays.copyOf(endContact, capacity);
+        }
+        return nodeCount++;
+    }
+
+    /**
+     * Length of the leading "+1" or "1" that the receivers have always ignored when comparing
+     */
+    private static int countryPrefixLength(String number) {
+        if (number.startsWith("+1")) return 2;
+        if (number.startsWith("1")) return 1;
+        return 0;
+    }
+
+    private static int countryPrefixLength(char[] number, int length) {
+        if (length >= 2 && number[0] == '+' && number[1] == '1') return 2;
+        if (length >= 1 && number[0] == '1') return 1;
+        return 0;
+    }
+
+    private static int symbolOf(char c) {
+        return c == '+' ? PLUS_SYMBOL : c - '0';
+    }
+}
@@ -0,0 +1,106 @@
+package com.importantnotification;
+
+/**
+ * Regex-free phone number cleaning for the call/SMS path.
+ *
+ * Produces exactly what {@code number.replaceAll("[^+\\d]", "")} used to: every character
+ * except ASCII digits and '+' is dropped. Numbers that are already clean (the usual case for
+ * carrier-supplied numbers) are returned without allocating.
+ */
+public class PhoneNumberNormalizer {
+    /** Longest number the reusable buffers hold; longer input is truncated from the front */
+    public static final int MAX_LENGTH = 32;
+
+    private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_LENGTH];
+        }
+    };
+
+    /**
+     * Clean a phone number, keeping only digits and '+'
+     * @return The cleaned number, "" for null input
+     */
+    public static String clean(String phoneNumber) {
+        if (phoneNumber == null) return "";
+
+        int length = phoneNumber.length();
+        int firstInvalid = 0;
+        while (firstInvalid < length && isKept(phoneNumber.charAt(firstInvalid))) {
+            firstInvalid++;
+        }
+        if (firstInvalid == length) {
+            return phoneNumber;
+        }
+
+        char[] chars = new char[length];
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = phoneNumber.charAt(i);
+            if (isKept(c)) {
+                chars[count++] = c;
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Per-thread scratch buffer for {@link #cleanInto(CharSequence, char[])}.
+     * Its contents are only valid until the next use on the same thread.
+     */
+    public static char[] threadBuffer() {
+        return BUFFER.get();
+    }
+
+    /**
+     * Clean a phone number into a caller-supplied buffer
+     * @param phoneNumber Raw number, may be null
+     * @param buffer Destination for the digits and '+' characters
+     * @return Number of characters written. If the cleaned number does not fit,
+     *         only its last {@code buffer.length} characters are kept.
+     */
+    public static int cleanInto(CharSequence phoneNumber, char[] buffer) {
+        if (phoneNumber == null) return 0;
+
+        // Walk backwards so an oversized number keeps its significant trailing digits
+        int count = 0;
+        int end = buffer.length;
+        for (int i = phoneNumber.length() - 1; i >= 0 && count < buffer.length; i--) {
+            char c = phoneNumber.charAt(i);
+            if (isKept(c)) {
+                buffer[--end] = c;
+                count++;
+            }
+        }
+        if (end > 0) {
+            System.arraycopy(buffer, end, buffer, 0, count);
+        }
+        return count;
+    }
+
+    /**
+     * Pack the digits of a phone number straight into a long, ignoring everything else
+     * @return The digits as a number, or -1 if there are no digits or more than 18 of them
+     */
+    public static long packDigits(CharSequence phoneNumber) {
+        if (phoneNumber == null) return -1;
+
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 18) {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+            }
+        }
+        return digits == 0 ? -1 : value;
+    }
+
+    static boolean isKept(char c) {
+        return (c >= '0' && c <= '9') || c == '+';
+    }
+}
@@ -3,24 +3,15 @@ package com.importantnotification;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.telephony.TelephonyManager;
-import android.media.AudioManager;
 import android.util.Log;
 import android.app.NotificationManager;
 import android.app.NotificationChannel;
 import android.app.Notification;
 import android.os.Build;
-import android.os.Handler;
 import androidx.core.app.NotificationCompat;
-import android.media.ToneGenerator;
-import android.provider.ContactsContract;
-import android.database.Cursor;
 import android.net.Uri;
 
-import java.util.Set;
-import java.util.HashSet;
-
 public class PhoneStateReceiver extends BroadcastReceiver {
     private static final String TAG = "PhoneStateReceiver";
     private static final String CHANNEL_ID = "important_calls";
@@ -44,6 +35,8 @@ public class PhoneStateReceiver extends BroadcastReceiver {
             } else {
                 handleIncomingCall(context, phoneNumber);
             }
+        } else if (TelephonyManager.EXTRA_STATE_OFFHOOK.equals(state)) {
+            handleCallAnswered(context);
         } else if (TelephonyManager.EXTRA_STATE_IDLE.equals(state)) {
             handleCallEnded(context);
         }
@@ -59,104 +52,55 @@ public class PhoneStateReceiver extends BroadcastReceiver {
         if (phoneNumber == null) return;
         
         // Clean the phone number (remove formatting)
-        String cleanNumber = cleanPhoneNumber(phoneNumber);
+        String cleanNumber = PhoneNumberNormalizer.clean(phoneNumber);
         Log.d(TAG, "Incoming call from: " + cleanNumber);
         
         // Check if this is an important contact
-        if (isImportantContact(context, cleanNumber)) {
+        ImportantContact contact = findImportantContact(context, cleanNumber);
+        if (contact != null) {
             Log.d(TAG, "Important contact calling! Overriding silent mode.");
-            overrideSilentMode(context, cleanNumber);
+            overrideSilentMode(context, cleanNumber, contact.getName(), ContactSync.isNameStale(contact));
+        } else if (RepeatedCallers.recordCall(cleanNumber, AlertConfig.get(context))) {
+            // Anyone calling again and again may have an emergency
+            Log.d(TAG, "Repeated caller! Overriding silent mode.");
+            overrideSilentMode(context, cleanNumber, cleanNumber + " (calling repeatedly)", false);
         }
     }
     
-    private void playCallAlertSound(Context context) {
-        try {
-            // TODO: FUTURE ENHANCEMENT - Add ability to stop beeping when:
-            // 1. Call is answered by user
-            // 2. Call is declined/ended
-            // 3. Call notification is acknowledged/dismissed
-            // This will require tracking active beep sequences and implementing cancellation mechanism
-            // Consider using TelephonyManager.CALL_STATE_OFFHOOK to detect call answered
-            
-            // Use ToneGenerator to play tone through STREAM_MUSIC
-            ToneGenerator toneGenerator = new ToneGenerator(AudioManager.STREAM_MUSIC, ToneGenerator.MAX_VOLUME);
-            
-            Handler handler = new Handler();
-            
-            // Get user settings for call alerts
-            int beepCount = AppSettings.getBeepCount(context);
-            int beepInterval = AppSettings.getCallInterval(context);
-            
-            // Use fixed beep duration (a beep is a beep!)
-            final int BEEP_DURATION = 500; // Original call beep duration
-            
-            Log.d(TAG, "Playing " + beepCount + " call beeps (500ms duration, " + beepInterval + "ms intervals)");
-            
-            // Play beeps with user-configured settings
-            for (int i = 0; i < beepCount; i++) {
-                final int beepNumber = i + 1;
-                handler.postDelayed(() -> {
-                    try {
-                        toneGenerator.startTone(ToneGenerator.TONE_PROP_BEEP, BEEP_DURATION);
-                        Log.d(TAG, "Playing call beep " + beepNumber + " of " + beepCount);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error playing call beep " + beepNumber, e);
-                    }
-                }, i * beepInterval);
-            }
-            
-            // Clean up after all beeps are done
-            handler.postDelayed(() -> {
-                toneGenerator.release();
-                Log.d(TAG, "Call alert sequence complete - " + beepCount + " beeps finished");
-            }, beepCount * beepInterval + 1000);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error playing call alert tone", e);
-        }
+    private void handleCallAnswered(Context context) {
+        // The call alert has done its job once the call is picked up
+        Log.d(TAG, "Call answered");
+        AlertArbiter.setCallOffHook(true);
+        AlertSessions.cancelAll(AlertSessions.CALL);
     }
     
     private void handleCallEnded(Context context) {
-        // Call ended - no special handling needed with new approach
+        // Declined, missed or hung up: stop any call alert still beeping
         Log.d(TAG, "Call ended");
+        AlertArbiter.setCallOffHook(false);
+        AlertSessions.cancelAll(AlertSessions.CALL);
     }
     
-    private boolean isImportantContact(Context context, String phoneNumber) {
-        SharedPreferences prefs = context.getSharedPreferences("ImportantContacts", Context.MODE_PRIVATE);
-        Set<String> importantContacts = prefs.getStringSet("important_contacts", new HashSet<>());
-        
-        Log.d(TAG, "Checking if " + phoneNumber + " is in important contacts: " + importantContacts);
-        
+    private ImportantContact findImportantContact(Context context, String phoneNumber) {
         // Check if the caller number matches any important contact
-        for (String contact : importantContacts) {
-            // Contact format is "Name|PhoneNumber"
-            if (contact.contains("|")) {
-                String storedNumber = contact.split("\\|")[1];
-                Log.d(TAG, "Comparing " + phoneNumber + " with stored " + storedNumber);
-                
-                if (phoneNumber != null && storedNumber != null) {
-                    // Clean both numbers for comparison
-                    String cleanIncoming = cleanPhoneNumber(phoneNumber);
-                    String cleanStored = cleanPhoneNumber(storedNumber);
-                    
-                    // Check various number formats
-                    if (cleanIncoming.equals(cleanStored) ||
-                        cleanIncoming.endsWith(cleanStored.replaceAll("^\\+?1", "")) ||
-                        cleanStored.endsWith(cleanIncoming.replaceAll("^\\+?1", ""))) {
-                        Log.d(TAG, "Match found! " + contact);
-                        return true;
-                    }
-                }
-            }
+        ImportantContact contact = PhoneNumberIndex.get(context).findMatch(phoneNumber);
+        if (contact != null) {
+            Log.d(TAG, "Match found! " + contact);
+            return contact;
         }
         
         Log.d(TAG, "No match found for " + phoneNumber);
-        return false;
+        return null;
     }
     
-    private void overrideSilentMode(Context context, String phoneNumber) {
+    /**
+     * @param contactName Name to show for the caller
+     * @param nameStale Whether to look the name up in the address book after alerting
+     */
+    private void overrideSilentMode(Context context, String phoneNumber, String contactName, boolean nameStale) {
         // Check if service is enabled
-        if (!AppSettings.isServiceEnabled(context)) {
+        AlertConfig config = AlertConfig.get(context);
+        if (!config.isServiceEnabled()) {
             Log.d(TAG, "Service disabled in settings, skipping call alert");
             return;
         }
@@ -167,71 +111,41 @@ public class PhoneStateReceiver extends BroadcastReceiver {
             return;
         }
         
-        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
-        
-        // Check if phone is in silent or vibrate mode
-        int currentRingerMode = audioManager.getRingerMode();
-        int currentNotificationVolume = audioManager.getStreamVolume(AudioManager.STREAM_NOTIFICATION);
-        int currentMediaVolume = audioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
+        // Boost the volume and beep until the call is answered or ends
+        AlertSessions.start(context, AlertSessions.CALL, phoneNumber, null, config);
         
-        Log.d(TAG, "Current ringer mode: " + currentRingerMode + ", notification volume: " + currentNotificationVolume + ", media volume: " + currentMediaVolume);
+        // Create high-priority notification using the name stored with the contact
+        showImportantCallNotification(context, phoneNumber, contactName);
         
-        // Store original settings
-        final int originalNotificationVolume = currentNotificationVolume;
-        final int originalMediaVolume = currentMediaVolume;
-        final int originalRingerMode = currentRingerMode;
+        Log.d(TAG, "Important call alert created for " + contactName);
         
-        // If notification volume is 0, boost media volume for call alert
-        if (currentNotificationVolume == 0) {
+        if (nameStale) {
+            refreshContactName(context, phoneNumber, contactName);
+        }
+    }
+    
+    /**
+     * Look the caller up in the address book after the alert has started, and retitle the
+     * notification in place if the stored name is out of date
+     */
+    private void refreshContactName(Context context, String phoneNumber, String storedName) {
+        final PendingResult pendingResult = goAsync();
+        ContactNameCache.refreshAsync(context, phoneNumber, name -> {
             try {
-                // Use settings-based volume calculation
-                int maxMediaVolume = audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
-                int alertVolume = AppSettings.calculateAlertVolume(context, maxMediaVolume);
-                
-                Log.d(TAG, "Boosting media volume from " + currentMediaVolume + " to " + alertVolume + " for call alert");
-                audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, alertVolume, 0);
-                
-                // Calculate when all beeps will be finished
-                int beepCount = AppSettings.getBeepCount(context);
-                int beepInterval = AppSettings.getCallInterval(context);
-                int totalBeepTime = beepCount * beepInterval + 500; // Add beep duration
-                int volumeRestoreDelay = totalBeepTime + 3000; // 3 seconds after beeps end
-                
-                Log.d(TAG, "Will restore volume in " + volumeRestoreDelay + "ms (after " + beepCount + " beeps finish)");
-                
-                // Schedule volume restoration after beeps complete
-                Handler handler = new Handler();
-                handler.postDelayed(() -> {
-                    try {
-                        Log.d(TAG, "Restoring media volume to " + originalMediaVolume);
-                        audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, originalMediaVolume, 0);
-                        
-                        // Ensure ringer mode hasn't changed
-                        if (audioManager.getRingerMode() != originalRingerMode) {
-                            Log.d(TAG, "Correcting ringer mode back to " + originalRingerMode);
-                            audioManager.setRingerMode(originalRingerMode);
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error restoring audio settings", e);
-                    }
-                }, volumeRestoreDelay);
-                
-            } catch (Exception e) {
-                Log.e(TAG, "Error setting volume: " + e.getMessage());
+                // The lookup falls back to the number itself when there is no contact
+                if (!name.equals(storedName) && !name.equals(phoneNumber)) {
+                    Log.d(TAG, "Updating call notification name from " + storedName + " to " + name);
+                    showImportantCallNotification(context, phoneNumber, name);
+                }
+            } finally {
+                if (pendingResult != null) {
+                    pendingResult.finish();
+                }
             }
-        }
-        
-        // Create high-priority notification 
-        String contactName = getContactNameFromNumber(context, phoneNumber);
-        showImportantCallNotification(context, contactName);
-        
-        // Play call alert sound using media stream
-        playCallAlertSound(context);
-        
-        Log.d(TAG, "Important call alert created for " + contactName);
+        });
     }
     
-    private void showImportantCallNotification(Context context, String contactName) {
+    private void showImportantCallNotification(Context context, String phoneNumber, String contactName) {
         NotificationManager notificationManager = 
             (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         
@@ -258,60 +172,16 @@ public class PhoneStateReceiver extends BroadcastReceiver {
             .setPriority(NotificationCompat.PRIORITY_MAX)
             .setCategory(NotificationCompat.CATEGORY_CALL)
             .setAutoCancel(true)
+            .setOnlyAlertOnce(true)  // Name refreshes update the notification silently
             .setDefaults(NotificationCompat.DEFAULT_ALL)
             .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
             .setFullScreenIntent(null, true)  // Try to show as heads-up
+            .addAction(android.R.drawable.ic_lock_silent_mode, "Stop",
+                AlertActionReceiver.createIntent(context, AlertActionReceiver.ACTION_STOP, AlertSessions.CALL, phoneNumber))
+            .setDeleteIntent(
+                AlertActionReceiver.createIntent(context, AlertActionReceiver.ACTION_DISMISSED, AlertSessions.CALL, phoneNumber))
             .build();
         
-        notificationManager.notify(NOTIFICATION_ID, notification);
-    }
-    
-    private String cleanPhoneNumber(String phoneNumber) {
-        if (phoneNumber == null) return "";
-        // Remove all non-digit characters except +
-        return phoneNumber.replaceAll("[^+\\d]", "");
-    }
-    
-    /**
-     * Get the contact name for a phone number from the device's contacts
-     */
-    private String getContactNameFromNumber(Context context, String phoneNumber) {
-        if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
-            Log.d(TAG, "Contact lookup: phone number is null or empty");
-            return "Unknown Contact";
-        }
-        
-        Log.d(TAG, "Looking up contact name for: " + phoneNumber);
-        
-        try {
-            Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, 
-                                          Uri.encode(phoneNumber));
-            Log.d(TAG, "Contact lookup URI: " + uri.toString());
-            
-            Cursor cursor = context.getContentResolver().query(uri, 
-                new String[]{ContactsContract.PhoneLookup.DISPLAY_NAME}, 
-                null, null, null);
-                
-            if (cursor != null) {
-                Log.d(TAG, "Contact query returned " + cursor.getCount() + " results");
-                if (cursor.moveToFirst()) {
-                    String name = cursor.getString(0);
-                    cursor.close();
-                    Log.d(TAG, "Found contact name: " + name);
-                    return (name != null && !name.trim().isEmpty()) ? name : phoneNumber;
-                }
-                cursor.close();
-                Log.d(TAG, "No contact found for number: " + phoneNumber);
-            } else {
-                Log.d(TAG, "Contact query returned null cursor");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error looking up contact name: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        // Return the phone number if we can't find a contact name
-        Log.d(TAG, "Returning phone number as fallback: " + phoneNumber);
-        return phoneNumber;
+        notificationManager.notify(phoneNumber, NOTIFICATION_ID, notification);
     }
 }
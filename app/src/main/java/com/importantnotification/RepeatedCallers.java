@@ -0,0 +1,82 @@
+package com.importantnotification;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Sliding-window call counters for numbers that aren't important contacts, so a number
+ * calling again and again (a common pattern in an emergency) can break through anyway.
+ *
+ * The counters live in a fixed table of the most recent callers, keyed by the number's
+ * match key, each holding the times of its last few calls. A call is looked up by a scan of
+ * the table with no allocation, and the least recently seen caller makes room for a new one,
+ * so a stream of one-off calls costs next to nothing and memory never grows.
+ */
+public class RepeatedCallers {
+    private static final String TAG = "RepeatedCallers";
+
+    private static final int MAX_CALLERS = 32;
+    /** Highest threshold the settings offer, and so the most call times kept per caller */
+    public static final int MAX_THRESHOLD = 10;
+
+    // Guarded by RepeatedCallers.class
+    private static final long[] keys = new long[MAX_CALLERS];
+    private static final long[] lastSeen = new long[MAX_CALLERS];
+    private static final int[] counts = new int[MAX_CALLERS];
+    private static final long[][] callTimes = new long[MAX_CALLERS][MAX_THRESHOLD];
+
+    /**
+     * Count a call from a number that isn't an important contact
+     * @param cleanNumber Number as cleaned by {@link PhoneNumberNormalizer#clean(String)}
+     * @return Whether the number has now called often enough within the window to alert
+     */
+    public static synchronized boolean recordCall(String cleanNumber, AlertConfig config) {
+        int threshold = Math.min(config.getRepeatCallThreshold(), MAX_THRESHOLD);
+        if (threshold <= 0) {
+            return false; // Escalation is off
+        }
+
+        char[] buffer = PhoneNumberNormalizer.threadBuffer();
+        int length = PhoneNumberNormalizer.cleanInto(cleanNumber, buffer);
+        long key = PhoneNumberCanonicalizer.matchKey(buffer, length);
+        if (key == PhoneNumberCanonicalizer.NO_KEY) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+
+        // Find the caller, or the least recently seen slot to take over
+        int slot = -1;
+        int oldest = 0;
+        for (int i = 0; i < MAX_CALLERS; i++) {
+            if (counts[i] > 0 && keys[i] == key) {
+                slot = i;
+                break;
+            }
+            if (counts[i] == 0 || lastSeen[i] < lastSeen[oldest] && counts[oldest] > 0) {
+                oldest = i;
+            }
+        }
+        if (slot < 0) {
+            slot = oldest;
+            keys[slot] = key;
+            counts[slot] = 0;
+        }
+
+        // Call times form a ring; the next slot to write holds the oldest time kept
+        long[] times = callTimes[slot];
+        int count = counts[slot];
+        times[count % MAX_THRESHOLD] = now;
+        counts[slot] = count + 1;
+        lastSeen[slot] = now;
+        if (count + 1 < threshold) {
+            return false;
+        }
+
+        long windowStart = times[(count + 1 - threshold) % MAX_THRESHOLD];
+        boolean repeated = now - windowStart <= config.getRepeatCallWindow();
+        if (repeated) {
+            Log.d(TAG, cleanNumber + " called " + threshold + " times within the window");
+        }
+        return repeated;
+    }
+}
@@ -20,6 +20,11 @@ public class SettingsActivity extends AppCompatActivity {
     private NumberPicker beepCountPicker;
     private NumberPicker smsIntervalPicker;
     private NumberPicker callIntervalPicker;
+    private NumberPicker burstWindowPicker;
+    private NumberPicker smsBurstLimitPicker;
+    private NumberPicker smsRefillRatePicker;
+    private NumberPicker repeatCallThresholdPicker;
+    private NumberPicker repeatCallWindowPicker;
     private Switch serviceEnabledSwitch;
     private Button saveButton;
     private Button resetButton;
@@ -33,13 +38,16 @@ public class SettingsActivity extends AppCompatActivity {
     public static final int DEFAULT_CALL_INTERVAL = 600;
     public static final boolean DEFAULT_SERVICE_ENABLED = true;
     
+    // Repeat alert window choices in seconds, 0 = every alert starts over
+    private static final int[] BURST_WINDOW_SECONDS = {0, 15, 30, 60, 120, 300};
+    
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_settings);
         
         // Initialize SharedPreferences
-        prefs = getSharedPreferences("ImportantNotificationSettings", MODE_PRIVATE);
+        prefs = AppSettings.getSettingsPrefs(this);
         
         // Initialize UI components
         initializeViews();
@@ -57,6 +65,11 @@ public class SettingsActivity extends AppCompatActivity {
         beepCountPicker = findViewById(R.id.beep_count_picker);
         smsIntervalPicker = findViewById(R.id.sms_interval_picker);
         callIntervalPicker = findViewById(R.id.call_interval_picker);
+        burstWindowPicker = findViewById(R.id.burst_window_picker);
+        smsBurstLimitPicker = findViewById(R.id.sms_burst_limit_picker);
+        smsRefillRatePicker = findViewById(R.id.sms_refill_rate_picker);
+        repeatCallThresholdPicker = findViewById(R.id.repeat_call_threshold_picker);
+        repeatCallWindowPicker = findViewById(R.id.repeat_call_window_picker);
         serviceEnabledSwitch = findViewById(R.id.service_enabled_switch);
         saveButton = findViewById(R.id.save_button);
         resetButton = findViewById(R.id.reset_button);
@@ -69,6 +82,38 @@ public class SettingsActivity extends AppCompatActivity {
         setupTimingPicker(smsIntervalPicker);
         setupTimingPicker(callIntervalPicker);
         
+        // Configure repeat alert window picker
+        String[] burstWindowValues = new String[BURST_WINDOW_SECONDS.length];
+        for (int i = 0; i < BURST_WINDOW_SECONDS.length; i++) {
+            burstWindowValues[i] = BURST_WINDOW_SECONDS[i] == 0 ? "Off" : BURST_WINDOW_SECONDS[i] + " sec";
+        }
+        burstWindowPicker.setMinValue(0);
+        burstWindowPicker.setMaxValue(BURST_WINDOW_SECONDS.length - 1);
+        burstWindowPicker.setDisplayedValues(burstWindowValues);
+        burstWindowPicker.setWrapSelectorWheel(false);
+        
+        // Configure SMS flood limit pickers
+        smsBurstLimitPicker.setMinValue(1);
+        smsBurstLimitPicker.setMaxValue(20);
+        smsBurstLimitPicker.setWrapSelectorWheel(false);
+        smsRefillRatePicker.setMinValue(1);
+        smsRefillRatePicker.setMaxValue(30);
+        smsRefillRatePicker.setWrapSelectorWheel(false);
+        
+        // Configure repeated caller pickers; 1 shows as "Off" since one call isn't a repeat
+        String[] thresholdValues = new String[RepeatedCallers.MAX_THRESHOLD];
+        thresholdValues[0] = "Off";
+        for (int i = 1; i < thresholdValues.length; i++) {
+            thresholdValues[i] = (i + 1) + " calls";
+        }
+        repeatCallThresholdPicker.setMinValue(1);
+        repeatCallThresholdPicker.setMaxValue(RepeatedCallers.MAX_THRESHOLD);
+        repeatCallThresholdPicker.setDisplayedValues(thresholdValues);
+        repeatCallThresholdPicker.setWrapSelectorWheel(false);
+        repeatCallWindowPicker.setMinValue(1);
+        repeatCallWindowPicker.setMaxValue(30);
+        repeatCallWindowPicker.setWrapSelectorWheel(false);
+        
         // Configure volume seekbar
         volumeSeekBar.setMax(10);
     }
@@ -101,6 +146,20 @@ public class SettingsActivity extends AppCompatActivity {
         picker.setValue(index);
     }
     
+    private void setBurstWindowPicker(int milliseconds) {
+        // Closest choice at or below the stored window
+        int index = 0;
+        for (int i = 0; i < BURST_WINDOW_SECONDS.length; i++) {
+            if (BURST_WINDOW_SECONDS[i] * 1000 <= milliseconds) index = i;
+        }
+        burstWindowPicker.setValue(index);
+    }
+    
+    private void setRepeatCallPickers(int threshold, int windowMilliseconds) {
+        repeatCallThresholdPicker.setValue(threshold <= 1 ? 1 : threshold);
+        repeatCallWindowPicker.setValue(Math.max(1, windowMilliseconds / 60000));
+    }
+    
     private void loadSettings() {
         // Load volume setting
         int volumeLevel = prefs.getInt("volume_level", DEFAULT_VOLUME_LEVEL);
@@ -117,6 +176,17 @@ public class SettingsActivity extends AppCompatActivity {
         setPickerValueFromMilliseconds(smsIntervalPicker, smsInterval);
         setPickerValueFromMilliseconds(callIntervalPicker, callInterval);
         
+        // Load repeat alert window
+        setBurstWindowPicker(prefs.getInt("burst_window", AppSettings.DEFAULT_BURST_WINDOW));
+        
+        // Load SMS flood limit
+        smsBurstLimitPicker.setValue(prefs.getInt("sms_burst_limit", AppSettings.DEFAULT_SMS_BURST_LIMIT));
+        smsRefillRatePicker.setValue(prefs.getInt("sms_refill_rate", AppSettings.DEFAULT_SMS_REFILL_RATE));
+        
+        // Load repeated caller escalation
+        setRepeatCallPickers(prefs.getInt("repeat_call_threshold", AppSettings.DEFAULT_REPEAT_CALL_THRESHOLD),
+            prefs.getInt("repeat_call_window", AppSettings.DEFAULT_REPEAT_CALL_WINDOW));
+        
         // Load service enabled state
         boolean serviceEnabled = prefs.getBoolean("service_enabled", DEFAULT_SERVICE_ENABLED);
         serviceEnabledSwitch.setChecked(serviceEnabled);
@@ -156,6 +226,12 @@ public class SettingsActivity extends AppCompatActivity {
         editor.putInt("beep_count", beepCountPicker.getValue());
         editor.putInt("sms_interval", getPickerValueInMilliseconds(smsIntervalPicker));
         editor.putInt("call_interval", getPickerValueInMilliseconds(callIntervalPicker));
+        editor.putInt("burst_window", BURST_WINDOW_SECONDS[burstWindowPicker.getValue()] * 1000);
+        editor.putInt("sms_burst_limit", smsBurstLimitPicker.getValue());
+        editor.putInt("sms_refill_rate", smsRefillRatePicker.getValue());
+        int threshold = repeatCallThresholdPicker.getValue();
+        editor.putInt("repeat_call_threshold", threshold == 1 ? 0 : threshold);
+        editor.putInt("repeat_call_window", repeatCallWindowPicker.getValue() * 60000);
         editor.putBoolean("service_enabled", serviceEnabledSwitch.isChecked());
         
         // Keep beep durations at their defaults (not user-configurable anymore)
@@ -176,6 +252,10 @@ public class SettingsActivity extends AppCompatActivity {
         beepCountPicker.setValue(DEFAULT_BEEP_COUNT);
         setPickerValueFromMilliseconds(smsIntervalPicker, DEFAULT_SMS_INTERVAL);
         setPickerValueFromMilliseconds(callIntervalPicker, DEFAULT_CALL_INTERVAL);
+        setBurstWindowPicker(AppSettings.DEFAULT_BURST_WINDOW);
+        smsBurstLimitPicker.setValue(AppSettings.DEFAULT_SMS_BURST_LIMIT);
+        smsRefillRatePicker.setValue(AppSettings.DEFAULT_SMS_REFILL_RATE);
+        setRepeatCallPickers(AppSettings.DEFAULT_REPEAT_CALL_THRESHOLD, AppSettings.DEFAULT_REPEAT_CALL_WINDOW);
         serviceEnabledSwitch.setChecked(DEFAULT_SERVICE_ENABLED);
         
         Toast.makeText(this, "Settings reset to defaults", Toast.LENGTH_SHORT).show();
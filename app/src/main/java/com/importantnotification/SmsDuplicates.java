@@ -0,0 +1,132 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Recognizes SMS that the carrier delivers more than once.
+ *
+ * Each message is fingerprinted with a 64-bit FNV-1a hash of its sender, body and service
+ * center timestamp, and the fingerprints of recent messages are kept in a fixed ring for a
+ * limited time. Fingerprinting walks the strings without allocating. The ring is mirrored
+ * slot by slot into {@code files/sms_fingerprints.bin}, so a copy that arrives just after the
+ * process was restarted is still caught.
+ */
+public class SmsDuplicates {
+    private static final String TAG = "SmsDuplicates";
+
+    private static final String FILE_NAME = "sms_fingerprints.bin";
+    private static final int CAPACITY = 32;
+    private static final int SLOT_SIZE = 16;
+    // Re-deliveries come within minutes; after this a matching message is taken as new
+    private static final long TTL_MS = 30 * 60 * 1000;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Guarded by SmsDuplicates.class
+    private static final long[] fingerprints = new long[CAPACITY];
+    private static final long[] seenAt = new long[CAPACITY];
+    private static int next;
+    private static RandomAccessFile file;
+    private static final byte[] slotBuffer = new byte[SLOT_SIZE];
+
+    /**
+     * Record a message and tell whether it has been seen recently
+     * @param address Originating address as received
+     * @param timestamp Service center timestamp of the message
+     * @return Whether this is a copy of a message already received
+     */
+    public static synchronized boolean isDuplicate(Context context, String address, String body, long timestamp) {
+        ensureLoaded(context);
+        long fingerprint = fingerprint(address, body, timestamp);
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < CAPACITY; i++) {
+            if (fingerprints[i] == fingerprint && seenAt[i] != 0 && now - seenAt[i] < TTL_MS) {
+                return true;
+            }
+        }
+
+        fingerprints[next] = fingerprint;
+        seenAt[next] = now;
+        persist(next);
+        next = (next + 1) % CAPACITY;
+        return false;
+    }
+
+    private static long fingerprint(String address, String body, long timestamp) {
+        long hash = FNV_OFFSET;
+        hash = mix(hash, address);
+        hash = (hash ^ 0xff) * FNV_PRIME; // Keeps "ab"+"c" apart from "a"+"bc"
+        hash = mix(hash, body);
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((timestamp >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            return hash;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Read the ring back from the previous process, once
+     */
+    private static void ensureLoaded(Context context) {
+        if (file != null) {
+            return;
+        }
+        try {
+            file = new RandomAccessFile(new File(context.getApplicationContext().getFilesDir(), FILE_NAME), "rw");
+            int slots = (int) Math.min(CAPACITY, file.length() / SLOT_SIZE);
+            file.seek(0);
+            for (int i = 0; i < slots; i++) {
+                fingerprints[i] = file.readLong();
+                seenAt[i] = file.readLong();
+            }
+            // Carry on after the newest entry so the oldest is overwritten first
+            int newest = -1;
+            for (int i = 0; i < CAPACITY; i++) {
+                if (seenAt[i] != 0 && (newest < 0 || seenAt[i] > seenAt[newest])) newest = i;
+            }
+            next = (newest + 1) % CAPACITY;
+            Log.d(TAG, "Loaded " + slots + " message fingerprints");
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading message fingerprints", e);
+        }
+    }
+
+    private static void persist(int slot) {
+        if (file == null) {
+            return;
+        }
+        try {
+            // Without a sync; the page cache outlives the process, which is what this is for
+            putLong(fingerprints[slot], 0);
+            putLong(seenAt[slot], 8);
+            file.seek((long) slot * SLOT_SIZE);
+            file.write(slotBuffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving message fingerprint", e);
+        }
+    }
+
+    private static void putLong(long value, int offset) {
+        for (int i = 0; i < 8; i++) {
+            slotBuffer[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+}
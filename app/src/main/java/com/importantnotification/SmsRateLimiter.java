@@ -0,0 +1,68 @@
+package com.importantnotification;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-sender token buckets that decide which SMS alerts may sound.
+ *
+ * Each sender starts with a full bucket of burst-limit tokens, one is spent per audible
+ * alert and they refill at the configured rate per minute. A flood from one sender therefore
+ * sounds a few alerts and then settles at the refill rate, while other senders keep their own
+ * buckets. Only the most recently heard senders have a bucket, so memory stays fixed however
+ * many numbers message in.
+ */
+public class SmsRateLimiter {
+    private static final String TAG = "SmsRateLimiter";
+
+    private static final int MAX_SENDERS = 64;
+    private static final long MINUTE_MS = 60 * 1000;
+
+    // Least recently used senders are evicted first, guarded by SmsRateLimiter.class
+    private static final Map<String, Bucket> buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MAX_SENDERS;
+        }
+    };
+
+    private static class Bucket {
+        double tokens;
+        long refilledAt;
+
+        Bucket(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+    }
+
+    /**
+     * Take a token for an alert from a sender
+     * @param sender Cleaned number of the sender
+     * @return Whether the alert may sound; if not, it should only update the notification
+     */
+    public static synchronized boolean tryAcquire(String sender, AlertConfig config) {
+        int burst = config.getSmsBurstLimit();
+        long now = SystemClock.elapsedRealtime();
+
+        Bucket bucket = buckets.get(sender);
+        if (bucket == null) {
+            bucket = new Bucket(burst, now);
+            buckets.put(sender, bucket);
+        } else {
+            double refilled = (double) (now - bucket.refilledAt) * config.getSmsRefillRate() / MINUTE_MS;
+            bucket.tokens = Math.min(burst, bucket.tokens + refilled);
+            bucket.refilledAt = now;
+        }
+
+        if (bucket.tokens < 1) {
+            Log.d(TAG, "Alert rate exceeded for " + sender);
+            return false;
+        }
+        bucket.tokens -= 1;
+        return true;
+    }
+}
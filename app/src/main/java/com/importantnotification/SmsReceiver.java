@@ -3,8 +3,6 @@ package com.importantnotification;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.media.AudioManager;
 import android.telephony.SmsMessage;
 import android.util.Log;
 import android.app.NotificationManager;
@@ -12,22 +10,24 @@ import android.app.NotificationChannel;
 import android.app.Notification;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import androidx.core.app.NotificationCompat;
 import android.media.RingtoneManager;
 import android.net.Uri;
-import android.media.ToneGenerator;
-import android.provider.ContactsContract;
-import android.database.Cursor;
 
-import java.util.Set;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class SmsReceiver extends BroadcastReceiver {
     private static final String TAG = "SmsReceiver";
     private static final String CHANNEL_ID = "important_sms";
     private static final int NOTIFICATION_ID = 1002;
 
+    // Latest notification posted per sender, so a late name refresh can tell it was replaced.
+    // Guarded by SmsReceiver.class, which is also held while posting.
+    private static final Map<String, Long> latestPosts = new HashMap<>();
+    private static long postCount;
+
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.d(TAG, "SMS Receiver triggered with action: " + intent.getAction());
@@ -41,6 +41,10 @@ public class SmsReceiver extends BroadcastReceiver {
                 Log.d(TAG, "Processing " + (pdus != null ? pdus.length : 0) + " SMS messages");
                 
                 if (pdus != null) {
+                    // A long message arrives as several PDUs in one broadcast; join them per
+                    // sender so it is matched and alerted once
+                    Map<String, StringBuilder> bodies = new LinkedHashMap<>();
+                    Map<String, Long> timestamps = new HashMap<>();
                     for (Object pdu : pdus) {
                         SmsMessage smsMessage;
                         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -49,15 +53,35 @@ public class SmsReceiver extends BroadcastReceiver {
                             smsMessage = SmsMessage.createFromPdu((byte[]) pdu);
                         }
                         
-                        if (smsMessage != null) {
+                        if (smsMessage != null && smsMessage.getDisplayOriginatingAddress() != null) {
                             String phoneNumber = smsMessage.getDisplayOriginatingAddress();
-                            String messageBody = smsMessage.getDisplayMessageBody();
-                            
-                            Log.d(TAG, "SMS received from: " + phoneNumber + " with message: " + 
-                                  (messageBody != null ? messageBody.substring(0, Math.min(messageBody.length(), 20)) + "..." : "null"));
-                            handleIncomingSms(context, phoneNumber, messageBody);
+                            StringBuilder body = bodies.get(phoneNumber);
+                            if (body == null) {
+                                body = new StringBuilder();
+                                bodies.put(phoneNumber, body);
+                                timestamps.put(phoneNumber, smsMessage.getTimestampMillis());
+                            }
+                            String part = smsMessage.getDisplayMessageBody();
+                            if (part != null) {
+                                body.append(part);
+                            }
                         }
                     }
+                    
+                    for (Map.Entry<String, StringBuilder> message : bodies.entrySet()) {
+                        String phoneNumber = message.getKey();
+                        String messageBody = message.getValue().toString();
+                        
+                        Log.d(TAG, "SMS received from: " + phoneNumber + " with message: " + 
+                              messageBody.substring(0, Math.min(messageBody.length(), 20)) + "...");
+                        
+                        // Carriers sometimes deliver the same message twice
+                        if (SmsDuplicates.isDuplicate(context, phoneNumber, messageBody, timestamps.get(phoneNumber))) {
+                            Log.d(TAG, "Dropping duplicate SMS from " + phoneNumber);
+                            continue;
+                        }
+                        handleIncomingSms(context, phoneNumber, messageBody);
+                    }
                 }
             }
         }
@@ -66,52 +90,33 @@ public class SmsReceiver extends BroadcastReceiver {
     private void handleIncomingSms(Context context, String phoneNumber, String messageBody) {
         if (phoneNumber == null) return;
         
-        String cleanNumber = cleanPhoneNumber(phoneNumber);
+        String cleanNumber = PhoneNumberNormalizer.clean(phoneNumber);
         Log.d(TAG, "SMS from: " + cleanNumber);
         
         // Check if this is from an important contact
-        if (isImportantContact(context, cleanNumber)) {
+        ImportantContact contact = findImportantContact(context, cleanNumber);
+        if (contact != null) {
             Log.d(TAG, "Important contact sent SMS! Creating alert.");
-            handleImportantSms(context, cleanNumber, messageBody);
+            handleImportantSms(context, cleanNumber, phoneNumber, contact, messageBody);
         }
     }
     
-    private boolean isImportantContact(Context context, String phoneNumber) {
-        SharedPreferences prefs = context.getSharedPreferences("ImportantContacts", Context.MODE_PRIVATE);
-        Set<String> importantContacts = prefs.getStringSet("important_contacts", new HashSet<>());
-        
-        Log.d(TAG, "Checking if " + phoneNumber + " is in important contacts: " + importantContacts);
-        
+    private ImportantContact findImportantContact(Context context, String phoneNumber) {
         // Check if the sender number matches any important contact
-        for (String contact : importantContacts) {
-            // Contact format is "Name|PhoneNumber"
-            if (contact.contains("|")) {
-                String storedNumber = contact.split("\\|")[1];
-                Log.d(TAG, "Comparing " + phoneNumber + " with stored " + storedNumber);
-                
-                if (phoneNumber != null && storedNumber != null) {
-                    // Clean both numbers for comparison
-                    String cleanIncoming = cleanPhoneNumber(phoneNumber);
-                    String cleanStored = cleanPhoneNumber(storedNumber);
-                    
-                    // Check various number formats
-                    if (cleanIncoming.equals(cleanStored) ||
-                        cleanIncoming.endsWith(cleanStored.replaceAll("^\\+?1", "")) ||
-                        cleanStored.endsWith(cleanIncoming.replaceAll("^\\+?1", ""))) {
-                        Log.d(TAG, "Match found! " + contact);
-                        return true;
-                    }
-                }
-            }
+        ImportantContact contact = PhoneNumberIndex.get(context).findMatch(phoneNumber);
+        if (contact != null) {
+            Log.d(TAG, "Match found! " + contact);
+            return contact;
         }
         
         Log.d(TAG, "No match found for " + phoneNumber);
-        return false;
+        return null;
     }
     
-    private void handleImportantSms(Context context, String phoneNumber, String messageBody) {
+    private void handleImportantSms(Context context, String phoneNumber, String address, ImportantContact contact, String messageBody) {
         // Check if service is enabled
-        if (!AppSettings.isServiceEnabled(context)) {
+        AlertConfig config = AlertConfig.get(context);
+        if (!config.isServiceEnabled()) {
             Log.d(TAG, "Service disabled in settings, skipping SMS alert");
             return;
         }
@@ -122,74 +127,73 @@ public class SmsReceiver extends BroadcastReceiver {
             return;
         }
         
-        // Get the contact name for display
-        String contactName = getContactNameFromNumber(context, phoneNumber);
-        
-        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        // Use the name stored with the contact so nothing is queried before the alert
+        String contactName = contact.getName();
         
-        // Check if phone is in silent or vibrate mode
-        int currentRingerMode = audioManager.getRingerMode();
-        int currentNotificationVolume = audioManager.getStreamVolume(AudioManager.STREAM_NOTIFICATION);
-        int currentMediaVolume = audioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
+        int messageCount;
+        boolean audible = SmsRateLimiter.tryAcquire(phoneNumber, config);
+        if (audible) {
+            // Boost the volume and beep until the alert finishes or is cancelled; a burst of
+            // messages from this sender joins the alert already running
+            messageCount = AlertSessions.start(context, AlertSessions.SMS, phoneNumber, address, config);
+        } else {
+            // Over this sender's alert rate: show the message without sounding again
+            messageCount = Math.max(1, AlertSessions.countSilent(AlertSessions.SMS, phoneNumber));
+        }
         
-        Log.d(TAG, "Current ringer mode: " + currentRingerMode + ", notification volume: " + currentNotificationVolume + ", media volume: " + currentMediaVolume);
+        // Create high-priority notification, with sound unless rate limited
+        long post;
+        synchronized (SmsReceiver.class) {
+            post = ++postCount;
+            latestPosts.put(phoneNumber, post);
+            showImportantSmsNotification(context, phoneNumber, contactName, messageBody, messageCount, !audible);
+        }
         
-        // Store original settings
-        final int originalNotificationVolume = currentNotificationVolume;
-        final int originalMediaVolume = currentMediaVolume;
-        final int originalRingerMode = currentRingerMode;
+        Log.d(TAG, "Important SMS alert created for " + contactName);
         
-        // If notification volume is 0, boost media volume instead to avoid ringer mode changes
-        if (currentNotificationVolume == 0) {
+        if (ContactSync.isNameStale(contact)) {
+            refreshContactName(context, phoneNumber, contactName, messageBody, messageCount, !audible, post);
+        }
+    }
+    
+    /**
+     * Look the sender up in the address book after the alert has started, and retitle the
+     * notification in place if the stored name is out of date
+     * @param post The notification to retitle; left alone if a later message has replaced it
+     */
+    private void refreshContactName(Context context, String phoneNumber, String storedName, String messageBody,
+                                    int messageCount, boolean silent, long post) {
+        final PendingResult pendingResult = goAsync();
+        ContactNameCache.refreshAsync(context, phoneNumber, name -> {
             try {
-                // Use settings-based volume calculation
-                int maxMediaVolume = audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
-                int alertVolume = AppSettings.calculateAlertVolume(context, maxMediaVolume);
-                
-                Log.d(TAG, "Boosting media volume from " + currentMediaVolume + " to " + alertVolume + " based on user settings");
-                audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, alertVolume, 0);
-                
-                // Calculate when all beeps will be finished
-                int beepCount = AppSettings.getBeepCount(context);
-                int beepInterval = AppSettings.getSmsInterval(context);
-                int totalBeepTime = beepCount * beepInterval + 400; // Add beep duration
-                int volumeRestoreDelay = totalBeepTime + 3000; // 3 seconds after beeps end
-                
-                Log.d(TAG, "Will restore volume in " + volumeRestoreDelay + "ms (after " + beepCount + " beeps finish)");
-                
-                // Schedule volume restoration after beeps complete
-                Handler handler = new Handler();
-                handler.postDelayed(() -> {
-                    try {
-                        Log.d(TAG, "Restoring media volume to " + originalMediaVolume);
-                        audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, originalMediaVolume, 0);
-                        
-                        // Ensure ringer mode hasn't changed
-                        if (audioManager.getRingerMode() != originalRingerMode) {
-                            Log.d(TAG, "Correcting ringer mode back to " + originalRingerMode);
-                            audioManager.setRingerMode(originalRingerMode);
+                // The lookup falls back to the number itself when there is no contact
+                if (!name.equals(storedName) && !name.equals(phoneNumber)) {
+                    synchronized (SmsReceiver.class) {
+                        Long latest = latestPosts.get(phoneNumber);
+                        if (latest != null && latest == post) {
+                            Log.d(TAG, "Updating SMS notification name from " + storedName + " to " + name);
+                            showImportantSmsNotification(context, phoneNumber, name, messageBody, messageCount, silent);
+                        } else {
+                            // Reposting would bring back an older message; the later one refreshes the name itself
+                            Log.d(TAG, "SMS notification replaced, not updating the name");
                         }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error restoring audio settings", e);
                     }
-                }, volumeRestoreDelay);
-                
-            } catch (Exception e) {
-                Log.e(TAG, "Error setting volume: " + e.getMessage());
-                // Continue with notification even if volume boost fails
+                }
+            } finally {
+                if (pendingResult != null) {
+                    pendingResult.finish();
+                }
             }
-        }
-        
-        // Create high-priority notification with sound
-        showImportantSmsNotification(context, contactName, messageBody);
-        
-        // Play notification sound using media stream
-        playNotificationSoundWithMediaVolume(context);
-        
-        Log.d(TAG, "Important SMS alert created for " + contactName);
+        });
     }
     
-    private void showImportantSmsNotification(Context context, String contactName, String messageBody) {
+    /**
+     * Post the alert notification for a sender. Each sender has one notification, updated in
+     * place with the latest message while their messages keep coming.
+     * @param silent Post without sound or vibration, for messages over the sender's alert rate
+     */
+    private void showImportantSmsNotification(Context context, String phoneNumber, String contactName, String messageBody,
+                                              int messageCount, boolean silent) {
         NotificationManager notificationManager = 
             (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         
@@ -223,130 +227,33 @@ public class SmsReceiver extends BroadcastReceiver {
             displayMessage = displayMessage.substring(0, 100) + "...";
         }
         
+        String title = "🚨 Important SMS: " + contactName;
+        if (messageCount > 1) {
+            title += " (" + messageCount + " messages)";
+        }
+        
         // Create extremely high-priority notification
         Notification notification = new NotificationCompat.Builder(context, CHANNEL_ID)
             .setSmallIcon(R.mipmap.ic_launcher)
-            .setContentTitle("🚨 Important SMS: " + contactName)
+            .setContentTitle(title)
             .setContentText(displayMessage)
             .setStyle(new NotificationCompat.BigTextStyle().bigText(displayMessage))
             .setPriority(NotificationCompat.PRIORITY_MAX)
             .setCategory(NotificationCompat.CATEGORY_MESSAGE)
             .setAutoCancel(true)
+            .setOnlyAlertOnce(true)  // Name refreshes and later messages update the notification silently
+            .setSilent(silent)
             .setDefaults(NotificationCompat.DEFAULT_ALL)
             .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
             .setFullScreenIntent(null, true)  // Try to show as heads-up
+            .addAction(android.R.drawable.ic_lock_silent_mode, "Stop",
+                AlertActionReceiver.createIntent(context, AlertActionReceiver.ACTION_STOP, AlertSessions.SMS, phoneNumber))
+            .setDeleteIntent(
+                AlertActionReceiver.createIntent(context, AlertActionReceiver.ACTION_DISMISSED, AlertSessions.SMS, phoneNumber))
             .build();
         
         // Don't add FLAG_INSISTENT to prevent continuous vibration
         
-        notificationManager.notify(NOTIFICATION_ID, notification);
-    }
-    
-    private void playNotificationSound(Context context) {
-        try {
-            Uri notification = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-            android.media.Ringtone ringtone = RingtoneManager.getRingtone(context, notification);
-            if (ringtone != null) {
-                ringtone.play();
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error playing notification sound", e);
-        }
-    }
-    
-    private void playNotificationSoundWithMediaVolume(Context context) {
-        try {
-            // TODO: FUTURE ENHANCEMENT - Add ability to stop beeping when:
-            // 1. SMS notification is acknowledged/dismissed
-            // 2. User interacts with the notification
-            // 3. User opens the SMS app
-            // This will require tracking active beep sequences and implementing cancellation mechanism
-            
-            // Use ToneGenerator to play tone through STREAM_MUSIC
-            ToneGenerator toneGenerator = new ToneGenerator(AudioManager.STREAM_MUSIC, ToneGenerator.MAX_VOLUME);
-            
-            Handler handler = new Handler();
-            
-            // Get user settings for SMS alerts
-            int beepCount = AppSettings.getBeepCount(context);
-            int beepInterval = AppSettings.getSmsInterval(context);
-            
-            // Use fixed beep duration (a beep is a beep!)
-            final int BEEP_DURATION = 400; // Original SMS beep duration
-            
-            Log.d(TAG, "Playing " + beepCount + " SMS beeps (400ms duration, " + beepInterval + "ms intervals)");
-            
-            // Play beeps with user-configured settings
-            for (int i = 0; i < beepCount; i++) {
-                final int beepNumber = i + 1;
-                handler.postDelayed(() -> {
-                    try {
-                        toneGenerator.startTone(ToneGenerator.TONE_PROP_BEEP, BEEP_DURATION);
-                        Log.d(TAG, "Playing SMS beep " + beepNumber + " of " + beepCount);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error playing SMS beep " + beepNumber, e);
-                    }
-                }, i * beepInterval);
-            }
-            
-            // Clean up after all beeps are done
-            handler.postDelayed(() -> {
-                toneGenerator.release();
-                Log.d(TAG, "SMS alert sequence complete - " + beepCount + " beeps finished");
-            }, beepCount * beepInterval + 1000);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error playing notification tone with media volume", e);
-            // Fallback to regular method
-            playNotificationSound(context);
-        }
-    }
-    
-    private String cleanPhoneNumber(String phoneNumber) {
-        if (phoneNumber == null) return "";
-        return phoneNumber.replaceAll("[^+\\d]", "");
-    }
-    
-    /**
-     * Get the contact name for a phone number from the device's contacts
-     */
-    private String getContactNameFromNumber(Context context, String phoneNumber) {
-        if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
-            Log.d(TAG, "Contact lookup: phone number is null or empty");
-            return "Unknown Contact";
-        }
-        
-        Log.d(TAG, "Looking up contact name for: " + phoneNumber);
-        
-        try {
-            Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, 
-                                          Uri.encode(phoneNumber));
-            Log.d(TAG, "Contact lookup URI: " + uri.toString());
-            
-            Cursor cursor = context.getContentResolver().query(uri, 
-                new String[]{ContactsContract.PhoneLookup.DISPLAY_NAME}, 
-                null, null, null);
-                
-            if (cursor != null) {
-                Log.d(TAG, "Contact query returned " + cursor.getCount() + " results");
-                if (cursor.moveToFirst()) {
-                    String name = cursor.getString(0);
-                    cursor.close();
-                    Log.d(TAG, "Found contact name: " + name);
-                    return (name != null && !name.trim().isEmpty()) ? name : phoneNumber;
-                }
-                cursor.close();
-                Log.d(TAG, "No contact found for number: " + phoneNumber);
-            } else {
-                Log.d(TAG, "Contact query returned null cursor");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error looking up contact name: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        // Return the phone number if we can't find a contact name
-        Log.d(TAG, "Returning phone number as fallback: " + phoneNumber);
-        return phoneNumber;
+        notificationManager.notify(phoneNumber, NOTIFICATION_ID, notification);
     }
 }
@@ -0,0 +1,173 @@
+package com.importantnotification;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+
+/**
+ * Plays alert beep sequences from pre-rendered PCM.
+ *
+ * One beep followed by the silence up to the next beep is rendered once into a static
+ * AudioTrack, and a sequence is that buffer looped once per beep, started with a single
+ * play() call. Nothing is scheduled per beep, so the timing doesn't depend on how busy the
+ * calling thread is. Each kind of alert keeps its own track for the life of the process;
+ * a track is only rendered again when the beep duration or interval changes.
+ */
+public class ToneEngine {
+    private static final String TAG = "ToneEngine";
+
+    public static final int SMS = 0;
+    public static final int CALL = 1;
+
+    private static final int SAMPLE_RATE = 22050;
+    // Same dual tone as ToneGenerator.TONE_PROP_BEEP, which the alerts used before
+    private static final double LOW_HZ = 400;
+    private static final double HIGH_HZ = 1200;
+    // Short fades so the beep doesn't click at either end
+    private static final int FADE_MS = 5;
+    private static final double AMPLITUDE = 0.4 * Short.MAX_VALUE;
+
+    private static final Track[] tracks = new Track[2];
+
+    /**
+     * A rendered beep period and the static track it is loaded into
+     */
+    private static class Track {
+        final AudioTrack audioTrack;
+        final int frames;
+        final int beepDuration;
+        final int interval;
+
+        Track(AudioTrack audioTrack, int frames, int beepDuration, int interval) {
+            this.audioTrack = audioTrack;
+            this.frames = frames;
+            this.beepDuration = beepDuration;
+            this.interval = interval;
+        }
+    }
+
+    /**
+     * Render the track for a kind of alert ahead of time, so the first alert starts at once
+     */
+    public static synchronized void prepare(int alert, AlertConfig.BeepPlan plan) {
+        trackFor(alert, plan);
+    }
+
+    /**
+     * Start a sequence of the plan's beeps, replacing any sequence of the same kind still
+     * playing. {@link AlertArbiter} decides which sequence may play.
+     * @param beeps How many beeps to play, fewer than the plan's count to resume a sequence
+     * @return Whether playback started
+     */
+    public static synchronized boolean play(int alert, AlertConfig.BeepPlan plan, int beeps) {
+        if (beeps <= 0) {
+            return true;
+        }
+        Track track = trackFor(alert, plan);
+        if (track == null) {
+            return false;
+        }
+
+        try {
+            AudioTrack audioTrack = track.audioTrack;
+            if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_STOPPED) {
+                audioTrack.stop();
+            }
+            // Rewind, then play the period once per beep
+            audioTrack.reloadStaticData();
+            audioTrack.setLoopPoints(0, track.frames, beeps - 1);
+            audioTrack.play();
+            Log.d(TAG, "Playing " + beeps + " beeps (" + plan.getBeepDuration() + "ms duration, "
+                + plan.getInterval() + "ms intervals)");
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error starting beep sequence", e);
+            release(alert);
+            return false;
+        }
+    }
+
+    /**
+     * Stop the beep sequence of a kind of alert, if one is playing
+     */
+    public static synchronized void stop(int alert) {
+        Track track = tracks[alert];
+        if (track != null && track.audioTrack.getPlayState() != AudioTrack.PLAYSTATE_STOPPED) {
+            try {
+                track.audioTrack.stop();
+                Log.d(TAG, "Stopped beep sequence");
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Error stopping beep sequence", e);
+            }
+        }
+    }
+
+    private static Track trackFor(int alert, AlertConfig.BeepPlan plan) {
+        Track track = tracks[alert];
+        if (track != null && track.beepDuration == plan.getBeepDuration() && track.interval == plan.getInterval()) {
+            return track;
+        }
+        release(alert);
+
+        short[] pcm = renderPeriod(plan.getBeepDuration(), plan.getPeriod());
+        try {
+            AudioTrack audioTrack = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                    .setLegacyStreamType(AudioManager.STREAM_MUSIC) // Follows the boosted media volume
+                    .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                    .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                    .setSampleRate(SAMPLE_RATE)
+                    .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                    .build())
+                .setTransferMode(AudioTrack.MODE_STATIC)
+                .setBufferSizeInBytes(pcm.length * 2)
+                .build();
+            audioTrack.write(pcm, 0, pcm.length);
+            if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+                Log.e(TAG, "Beep track failed to initialize");
+                audioTrack.release();
+                return null;
+            }
+
+            tracks[alert] = new Track(audioTrack, pcm.length, plan.getBeepDuration(), plan.getInterval());
+            Log.d(TAG, "Rendered " + pcm.length + " frame beep period");
+            return tracks[alert];
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            Log.e(TAG, "Error creating beep track", e);
+            return null;
+        }
+    }
+
+    private static void release(int alert) {
+        Track track = tracks[alert];
+        if (track != null) {
+            track.audioTrack.release();
+            tracks[alert] = null;
+        }
+    }
+
+    /**
+     * One beep of the plan's full duration followed by silence until the next beep is due
+     */
+    private static short[] renderPeriod(int beepDuration, int periodMs) {
+        short[] pcm = new short[SAMPLE_RATE * periodMs / 1000];
+        int toneFrames = SAMPLE_RATE * beepDuration / 1000;
+        int fadeFrames = Math.min(SAMPLE_RATE * FADE_MS / 1000, toneFrames / 2);
+
+        for (int i = 0; i < toneFrames; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double gain = 1.0;
+            if (i < fadeFrames) {
+                gain = (double) i / fadeFrames;
+            } else if (i >= toneFrames - fadeFrames) {
+                gain = (double) (toneFrames - i) / fadeFrames;
+            }
+            double sample = Math.sin(2 * Math.PI * LOW_HZ * t) + Math.sin(2 * Math.PI * HIGH_HZ * t);
+            pcm[i] = (short) (AMPLITUDE * gain * sample);
+        }
+        return pcm;
+    }
+}
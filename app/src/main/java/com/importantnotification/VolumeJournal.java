@@ -0,0 +1,162 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead record of the volume overrides, so a boost survives the process being killed.
+ *
+ * Before the media volume is first boosted the original volume and ringer mode are appended
+ * to {@code files/volume_journal.bin} and synced, and once they have been put back a restore
+ * record is appended. A boost without a restore after it means the process died with the
+ * volume raised, and {@link VolumeLeases#reconcile} puts the recorded state back.
+ *
+ * Records are 16 bytes: type, media volume, ringer mode and a CRC32 of the first three, so a
+ * record torn by a crash is ignored. The file is kept open and appends are data-only syncs of
+ * one record, which keeps the boost well under a millisecond on typical flash. It is emptied
+ * again once it grows past a few records with nothing outstanding.
+ */
+public class VolumeJournal {
+    private static final String TAG = "VolumeJournal";
+
+    private static final String FILE_NAME = "volume_journal.bin";
+    private static final int RECORD_SIZE = 16;
+    private static final int TYPE_BOOST = 0x424F5354; // "BOST"
+    private static final int TYPE_RESTORE = 0x52535452; // "RSTR"
+    // Start over once this many records have piled up
+    private static final int MAX_RECORDS = 64;
+
+    private static FileChannel channel;
+    private static final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private static final CRC32 crc = new CRC32();
+
+    /**
+     * An override that was recorded but never restored
+     */
+    public static final class Override {
+        public final int mediaVolume;
+        public final int ringerMode;
+
+        Override(int mediaVolume, int ringerMode) {
+            this.mediaVolume = mediaVolume;
+            this.ringerMode = ringerMode;
+        }
+    }
+
+    /**
+     * Open the journal and find an override left behind by a previous process
+     * @return The unreleased override, or null if the last boost was restored
+     */
+    public static synchronized Override open(Context context) {
+        if (!ensureOpen(context)) {
+            return null;
+        }
+        try {
+            // Only the latest records matter, and the file is normally emptied long before this
+            long size = channel.size();
+            long offset = Math.max(0, size - (long) MAX_RECORDS * 2 * RECORD_SIZE);
+            offset -= offset % RECORD_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (size - offset));
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+                // Keep reading until the end of the file
+            }
+            buffer.flip();
+
+            Override pending = null;
+            while (buffer.remaining() >= RECORD_SIZE) {
+                int type = buffer.getInt();
+                int mediaVolume = buffer.getInt();
+                int ringerMode = buffer.getInt();
+                int check = buffer.getInt();
+                if (check != checksum(type, mediaVolume, ringerMode)) {
+                    Log.w(TAG, "Ignoring torn journal record");
+                    break;
+                }
+                pending = type == TYPE_BOOST ? new Override(mediaVolume, ringerMode) : null;
+            }
+            return pending;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading volume journal", e);
+            return null;
+        }
+    }
+
+    /**
+     * Record the state a boost is about to override, before touching the volume
+     */
+    public static synchronized void recordBoost(Context context, int mediaVolume, int ringerMode) {
+        append(context, TYPE_BOOST, mediaVolume, ringerMode);
+    }
+
+    /**
+     * Record that the overridden state has been put back
+     */
+    public static synchronized void recordRestore(Context context) {
+        append(context, TYPE_RESTORE, 0, 0);
+        try {
+            if (channel != null && channel.size() >= (long) MAX_RECORDS * RECORD_SIZE) {
+                // Nothing is outstanding right after a restore, so the history can go
+                channel.truncate(0);
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error compacting volume journal", e);
+        }
+    }
+
+    private static void append(Context context, int type, int mediaVolume, int ringerMode) {
+        if (!ensureOpen(context)) {
+            return;
+        }
+        record.clear();
+        record.putInt(type).putInt(mediaVolume).putInt(ringerMode).putInt(checksum(type, mediaVolume, ringerMode));
+        record.flip();
+        try {
+            // Whole records only, so a shorter file left by a torn append is realigned first
+            long size = channel.size();
+            long end = size - size % RECORD_SIZE;
+            while (record.hasRemaining()) {
+                end += channel.write(record, end);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing volume journal", e);
+        }
+    }
+
+    private static boolean ensureOpen(Context context) {
+        if (channel != null) {
+            return true;
+        }
+        try {
+            File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening volume journal", e);
+            return false;
+        }
+    }
+
+    private static int checksum(int type, int mediaVolume, int ringerMode) {
+        crc.reset();
+        update(type);
+        update(mediaVolume);
+        update(ringerMode);
+        return (int) crc.getValue();
+    }
+
+    private static void update(int value) {
+        crc.update(value >>> 24);
+        crc.update(value >>> 16);
+        crc.update(value >>> 8);
+        crc.update(value);
+    }
+}
@@ -0,0 +1,136 @@
+package com.importantnotification;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide owner of the boosted media volume.
+ *
+ * Every alert that needs the volume raised takes a lease. The first lease records the real
+ * media volume and ringer mode, later leases only ever raise the volume further, and the
+ * recorded state is put back when the last lease is released. Overlapping alerts therefore
+ * never snapshot each other's boost, and the phone can't be left at the alert volume.
+ *
+ * The recorded state is also written ahead to {@link VolumeJournal} before the volume is
+ * touched, so a boost left behind by a killed process is put back by {@link #reconcile} on
+ * the next start or boot.
+ *
+ * The lease count and recorded state are guarded by one short lock around the AudioManager
+ * calls; releasing a lease is idempotent without taking it.
+ */
+public class VolumeLeases {
+    private static final String TAG = "VolumeLeases";
+
+    // Guarded by VolumeLeases.class
+    private static int leaseCount;
+    private static int originalMediaVolume;
+    private static int originalRingerMode;
+    private static int boostedVolume;
+
+    /**
+     * A hold on the boosted volume, released once
+     */
+    public static final class Lease {
+        private final Context context;
+        private final AudioManager audioManager;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(Context context, AudioManager audioManager) {
+            this.context = context;
+            this.audioManager = audioManager;
+        }
+
+        /**
+         * Give up the hold, restoring the original volume if this was the last one
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                VolumeLeases.release(context, audioManager);
+            }
+        }
+    }
+
+    /**
+     * Boost the media volume for an alert if notifications are muted
+     * @return The lease to release when the alert is over, or null if no boost was needed
+     */
+    public static Lease acquire(Context context, AlertConfig config) {
+        Context appContext = context.getApplicationContext();
+        AudioManager audioManager = (AudioManager) appContext.getSystemService(Context.AUDIO_SERVICE);
+
+        synchronized (VolumeLeases.class) {
+            int currentNotificationVolume = audioManager.getStreamVolume(AudioManager.STREAM_NOTIFICATION);
+            // The boost only touches media, so a muted notification stream stays muted while leased
+            if (currentNotificationVolume != 0) {
+                Log.d(TAG, "Notification volume is " + currentNotificationVolume + ", no boost needed");
+                return null;
+            }
+
+            try {
+                int maxMediaVolume = audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+                int alertVolume = config.getAlertVolume(maxMediaVolume);
+
+                if (leaseCount == 0) {
+                    originalMediaVolume = audioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
+                    originalRingerMode = audioManager.getRingerMode();
+                    boostedVolume = -1;
+                    VolumeJournal.recordBoost(appContext, originalMediaVolume, originalRingerMode);
+                    Log.d(TAG, "Recorded media volume " + originalMediaVolume + ", ringer mode " + originalRingerMode);
+                }
+                if (alertVolume > boostedVolume) {
+                    Log.d(TAG, "Boosting media volume to " + alertVolume + " based on user settings");
+                    audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, alertVolume, 0);
+                    boostedVolume = alertVolume;
+                }
+                leaseCount++;
+                return new Lease(appContext, audioManager);
+            } catch (Exception e) {
+                Log.e(TAG, "Error setting volume: " + e.getMessage());
+                // Continue with the alert even if volume boost fails
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Put back a volume override that a previous process recorded but never restored.
+     * Safe to call at any time; leases held by this process are left alone.
+     */
+    public static synchronized void reconcile(Context context) {
+        Context appContext = context.getApplicationContext();
+        VolumeJournal.Override pending = VolumeJournal.open(appContext);
+        if (pending == null || leaseCount > 0) {
+            return;
+        }
+        Log.d(TAG, "Found a volume override that was never restored");
+        AudioManager audioManager = (AudioManager) appContext.getSystemService(Context.AUDIO_SERVICE);
+        restore(appContext, audioManager, pending.mediaVolume, pending.ringerMode);
+    }
+
+    private static synchronized void release(Context context, AudioManager audioManager) {
+        if (--leaseCount > 0) {
+            Log.d(TAG, leaseCount + " volume leases still held");
+            return;
+        }
+        restore(context, audioManager, originalMediaVolume, originalRingerMode);
+    }
+
+    private static void restore(Context context, AudioManager audioManager, int mediaVolume, int ringerMode) {
+        try {
+            Log.d(TAG, "Restoring media volume to " + mediaVolume);
+            audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, mediaVolume, 0);
+
+            // Ensure ringer mode hasn't changed
+            if (audioManager.getRingerMode() != ringerMode) {
+                Log.d(TAG, "Correcting ringer mode back to " + ringerMode);
+                audioManager.setRingerMode(ringerMode);
+            }
+            VolumeJournal.recordRestore(context);
+        } catch (Exception e) {
+            Log.e(TAG, "Error restoring audio settings", e);
+        }
+    }
+}
@@ -1,36 +1,47 @@
 package com.importantnotification.churchmode;
 
-import android.content.Context;
-import android.content.SharedPreferences;
+import android.Manifest;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.TimePicker;
-import android.widget.Toast;
 
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.importantnotification.AppStore;
+import com.importantnotification.ChurchModeCalendar;
+import com.importantnotification.ChurchModeScheduler;
 import com.importantnotification.R;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class ChurchModeActivity extends AppCompatActivity implements ChurchModeScheduleAdapter.OnScheduleActionListener {
+    private static final int CALENDAR_PERMISSION_REQUEST_CODE = 200;
     
     private RecyclerView scheduleList;
     private Button addScheduleButton;
+    private Button chooseCalendarButton;
+    private TextView statusText;
     private ChurchModeScheduleAdapter adapter;
-    private List<ChurchModeSchedule> schedules;
+    // Rows currently shown; replaced with an updated copy on every change for the list differ
+    private List<ChurchModeScheduleAdapter.ScheduleItem> items = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,45 +50,120 @@ public class ChurchModeActivity extends AppCompatActivity implements ChurchModeS
 
         scheduleList = findViewById(R.id.schedule_list);
         addScheduleButton = findViewById(R.id.add_schedule_button);
-        schedules = new ArrayList<>();
+        chooseCalendarButton = findViewById(R.id.choose_calendar_button);
+        statusText = findViewById(R.id.church_mode_status);
 
-        adapter = new ChurchModeScheduleAdapter(schedules, this);
+        adapter = new ChurchModeScheduleAdapter(this);
         scheduleList.setLayoutManager(new LinearLayoutManager(this));
         scheduleList.setAdapter(adapter);
 
         addScheduleButton.setOnClickListener(v -> showAddEditDialog(null));
+        chooseCalendarButton.setOnClickListener(v -> chooseCalendar());
 
         loadSchedules();
+        updateCalendarButton();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        updateStatus();
+    }
+
+    private void updateStatus() {
+        statusText.setText(ChurchModeScheduler.getStatusText(this));
+    }
+
+    private void updateCalendarButton() {
+        AppStore store = AppStore.get(this);
+        boolean chosen = store.getLong(ChurchModeCalendar.KEY_CALENDAR_ID, ChurchModeCalendar.NO_CALENDAR)
+            != ChurchModeCalendar.NO_CALENDAR;
+        chooseCalendarButton.setText("Quiet during calendar events: "
+            + (chosen ? store.getString(ChurchModeCalendar.KEY_CALENDAR_NAME, "") : "Off"));
+    }
+
+    /**
+     * Pick the calendar whose events silence alerts, asking for calendar access first
+     */
+    private void chooseCalendar() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_CALENDAR) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.READ_CALENDAR},
+                CALENDAR_PERMISSION_REQUEST_CODE);
+            return;
+        }
+
+        Map<Long, String> calendars = ChurchModeCalendar.queryCalendars(getContentResolver());
+        List<Long> ids = new ArrayList<>(calendars.keySet());
+        String[] names = new String[ids.size() + 1];
+        names[0] = "Off";
+        for (int i = 0; i < ids.size(); i++) {
+            names[i + 1] = calendars.get(ids.get(i));
+        }
+
+        new AlertDialog.Builder(this)
+            .setTitle("Quiet during events from")
+            .setItems(names, (dialog, which) -> {
+                long calendarId = which == 0 ? ChurchModeCalendar.NO_CALENDAR : ids.get(which - 1);
+                AppStore.get(this).edit()
+                    .putString(ChurchModeCalendar.KEY_CALENDAR_NAME, names[which])
+                    .putLong(ChurchModeCalendar.KEY_CALENDAR_ID, calendarId)
+                    .apply();
+                updateCalendarButton();
+            })
+            .setNegativeButton("Cancel", null)
+            .show();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+
+        if (requestCode == CALENDAR_PERMISSION_REQUEST_CODE
+                && grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            // Start watching the calendar now that it can be read
+            ChurchModeCalendar.start(this);
+            chooseCalendar();
+        }
     }
 
     private void loadSchedules() {
-        SharedPreferences prefs = getSharedPreferences("church_mode_schedules", Context.MODE_PRIVATE);
-        String json = prefs.getString("schedules", "[]");
-        
-        try {
-            JSONArray arr = new JSONArray(json);
-            schedules.clear();
-            for (int i = 0; i < arr.length(); i++) {
-                schedules.add(ChurchModeSchedule.fromJson(arr.getJSONObject(i)));
-            }
-            adapter.notifyDataSetChanged();
-        } catch (JSONException e) {
-            Toast.makeText(this, "Error loading schedules", Toast.LENGTH_SHORT).show();
+        List<ChurchModeScheduleAdapter.ScheduleItem> loaded = new ArrayList<>();
+        for (ChurchModeSchedule schedule : AppStore.get(this).getSchedules()) {
+            loaded.add(new ChurchModeScheduleAdapter.ScheduleItem(schedule));
         }
+        showItems(loaded);
     }
 
-    private void saveSchedules() {
-        SharedPreferences prefs = getSharedPreferences("church_mode_schedules", Context.MODE_PRIVATE);
-        JSONArray arr = new JSONArray();
-        
-        try {
-            for (ChurchModeSchedule schedule : schedules) {
-                arr.put(schedule.toJson());
+    private void showItems(List<ChurchModeScheduleAdapter.ScheduleItem> updated) {
+        items = updated;
+        adapter.submitList(updated);
+    }
+
+    /**
+     * Store one added or edited schedule and update only its row; the store writes it to
+     * disk on its own thread and the other schedules are left untouched
+     */
+    private void saveSchedule(ChurchModeSchedule schedule) {
+        AppStore.get(this).putSchedule(schedule);
+
+        List<ChurchModeScheduleAdapter.ScheduleItem> updated = new ArrayList<>(items);
+        ChurchModeScheduleAdapter.ScheduleItem item = new ChurchModeScheduleAdapter.ScheduleItem(schedule);
+        int index = indexOf(schedule.getId());
+        if (index >= 0) {
+            updated.set(index, item);
+        } else {
+            updated.add(item);
+        }
+        showItems(updated);
+    }
+
+    private int indexOf(String scheduleId) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getSchedule().getId().equals(scheduleId)) {
+                return i;
             }
-            prefs.edit().putString("schedules", arr.toString()).apply();
-        } catch (JSONException e) {
-            Toast.makeText(this, "Error saving schedules", Toast.LENGTH_SHORT).show();
         }
+        return -1;
     }
 
     private void showAddEditDialog(ChurchModeSchedule schedule) {
@@ -96,6 +182,25 @@ public class ChurchModeActivity extends AppCompatActivity implements ChurchModeS
         TimePicker startPicker = dialogView.findViewById(R.id.start_time_picker);
         TimePicker endPicker = dialogView.findViewById(R.id.end_time_picker);
         Spinner recurrenceSpinner = dialogView.findViewById(R.id.recurrence_spinner);
+        Spinner weekOfMonthSpinner = dialogView.findViewById(R.id.week_of_month_spinner);
+        EditText oneOffDatesInput = dialogView.findViewById(R.id.one_off_dates_input);
+        EditText exceptionDatesInput = dialogView.findViewById(R.id.exception_dates_input);
+
+        // Only show the inputs the selected recurrence uses
+        recurrenceSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                String selected = parent.getItemAtPosition(position).toString();
+                weekOfMonthSpinner.setVisibility(ChurchModeSchedule.RECURRENCE_MONTHLY.equals(selected)
+                    ? View.VISIBLE : View.GONE);
+                oneOffDatesInput.setVisibility(ChurchModeSchedule.RECURRENCE_ONE_OFF.equals(selected)
+                    ? View.VISIBLE : View.GONE);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
 
         // Populate fields if editing
         if (schedule != null) {
@@ -116,6 +221,11 @@ public class ChurchModeActivity extends AppCompatActivity implements ChurchModeS
                     break;
                 }
             }
+            
+            int weekOfMonth = schedule.getWeekOfMonth();
+            weekOfMonthSpinner.setSelection(weekOfMonth == ChurchModeSchedule.LAST_WEEK ? 4 : weekOfMonth - 1);
+            oneOffDatesInput.setText(formatDates(schedule.getDates()));
+            exceptionDatesInput.setText(formatDates(schedule.getExceptionDates()));
         }
 
         AlertDialog dialog = new AlertDialog.Builder(this)
@@ -139,20 +249,36 @@ public class ChurchModeActivity extends AppCompatActivity implements ChurchModeS
             int endHour = endPicker.getHour();
             int endMinute = endPicker.getMinute();
             String recurrence = recurrenceSpinner.getSelectedItem().toString();
+            boolean oneOff = ChurchModeSchedule.RECURRENCE_ONE_OFF.equals(recurrence);
+            int weekPosition = weekOfMonthSpinner.getSelectedItemPosition();
+            int weekOfMonth = weekPosition == 4 ? ChurchModeSchedule.LAST_WEEK : weekPosition + 1;
 
-            if (name.isEmpty() || days.isEmpty()) {
+            List<Long> oneOffDates = parseDates(oneOffDatesInput);
+            List<Long> exceptionDates = parseDates(exceptionDatesInput);
+            if (oneOffDates == null || exceptionDates == null) {
+                return;
+            }
+
+            // One-off schedules use their dates instead of weekdays
+            if (name.isEmpty() || (!oneOff && days.isEmpty()) || (oneOff && oneOffDates.isEmpty())) {
                 if (name.isEmpty()) nameInput.setError("Name required");
-                if (days.isEmpty()) dayViews[0].setError("Select at least one day");
+                if (!oneOff && days.isEmpty()) dayViews[0].setError("Select at least one day");
+                if (oneOff && oneOffDates.isEmpty()) oneOffDatesInput.setError("Enter at least one date");
                 return;
             }
 
+            ChurchModeSchedule saved = schedule;
             if (schedule == null) {
-                ChurchModeSchedule newSchedule = new ChurchModeSchedule(
+                saved = new ChurchModeSchedule(
                         UUID.randomUUID().toString(),
                         name, days, startHour, startMinute, endHour, endMinute, recurrence
                 );
-                schedules.add(newSchedule);
+                saved.setAnchorDay(LocalDate.now().toEpochDay());
             } else {
+                if (!ChurchModeSchedule.RECURRENCE_BIWEEKLY.equals(schedule.getRecurrence())) {
+                    // Newly every other week: count from this week
+                    schedule.setAnchorDay(LocalDate.now().toEpochDay());
+                }
                 schedule.setName(name);
                 schedule.setDaysOfWeek(days);
                 schedule.setStartHour(startHour);
@@ -161,9 +287,12 @@ public class ChurchModeActivity extends AppCompatActivity implements ChurchModeS
                 schedule.setEndMinute(endMinute);
                 schedule.setRecurrence(recurrence);
             }
+            saved.setWeekOfMonth(weekOfMonth);
+            saved.setDates(oneOffDates);
+            saved.setExceptionDates(exceptionDates);
             
-            saveSchedules();
-            adapter.notifyDataSetChanged();
+            saveSchedule(saved);
+            updateStatus();
             dialog.dismiss();
         });
 
@@ -171,6 +300,35 @@ public class ChurchModeActivity extends AppCompatActivity implements ChurchModeS
         dialog.show();
     }
 
+    /**
+     * Parse comma separated yyyy-MM-dd dates into sorted epoch days
+     * @return The dates, or null after flagging the input if a date is invalid
+     */
+    private List<Long> parseDates(EditText input) {
+        List<Long> dates = new ArrayList<>();
+        for (String part : input.getText().toString().split(",")) {
+            String text = part.trim();
+            if (text.isEmpty()) continue;
+            try {
+                dates.add(LocalDate.parse(text).toEpochDay());
+            } catch (DateTimeParseException e) {
+                input.setError("Invalid date: " + text);
+                return null;
+            }
+        }
+        Collections.sort(dates);
+        return dates;
+    }
+
+    private static String formatDates(List<Long> dates) {
+        StringBuilder text = new StringBuilder();
+        for (Long date : dates) {
+            if (text.length() > 0) text.append(", ");
+            text.append(LocalDate.ofEpochDay(date));
+        }
+        return text.toString();
+    }
+
     @Override
     public void onEdit(ChurchModeSchedule schedule) {
         showAddEditDialog(schedule);
@@ -178,8 +336,14 @@ public class ChurchModeActivity extends AppCompatActivity implements ChurchModeS
 
     @Override
     public void onDelete(ChurchModeSchedule schedule) {
-        schedules.remove(schedule);
-        saveSchedules();
-        adapter.notifyDataSetChanged();
+        AppStore.get(this).removeSchedule(schedule.getId());
+
+        int index = indexOf(schedule.getId());
+        if (index >= 0) {
+            List<ChurchModeScheduleAdapter.ScheduleItem> updated = new ArrayList<>(items);
+            updated.remove(index);
+            showItems(updated);
+        }
+        updateStatus();
     }
 }
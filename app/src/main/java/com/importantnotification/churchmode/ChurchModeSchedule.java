@@ -9,8 +9,23 @@ import java.util.List;
 
 /**
  * Data class representing a Church Mode schedule.
+ *
+ * The recurrence decides which dates the time window applies to: every selected weekday
+ * (weekly and custom days), every other week, the nth selected weekday of each month, or an
+ * explicit list of one-off dates. Exception dates (e.g. holidays) are skipped for any recurrence.
+ * Dates are stored as epoch days (days since 1970-01-01, local calendar).
  */
 public class ChurchModeSchedule {
+    // Values match the recurrence_options spinner entries
+    public static final String RECURRENCE_WEEKLY = "Weekly";
+    public static final String RECURRENCE_CUSTOM = "Custom Days";
+    public static final String RECURRENCE_BIWEEKLY = "Every Other Week";
+    public static final String RECURRENCE_MONTHLY = "Monthly";
+    public static final String RECURRENCE_ONE_OFF = "One-off Dates";
+
+    /** Week of month for the last selected weekday of each month */
+    public static final int LAST_WEEK = -1;
+
     private String id;
     private String name;
     private List<Integer> daysOfWeek; // 1=Sunday, 7=Saturday
@@ -18,7 +33,11 @@ public class ChurchModeSchedule {
     private int startMinute;
     private int endHour;
     private int endMinute;
-    private String recurrence; // e.g. "weekly", "custom"
+    private String recurrence; // One of the RECURRENCE_ values
+    private int weekOfMonth = 1; // Monthly: 1-4, or LAST_WEEK
+    private long anchorDay; // Every other week: a day in an active week
+    private List<Long> dates = new ArrayList<>(); // One-off: the dates it applies to
+    private List<Long> exceptionDates = new ArrayList<>(); // Dates that are skipped
 
     public ChurchModeSchedule(String id, String name, List<Integer> daysOfWeek, 
                              int startHour, int startMinute, int endHour, int endMinute, String recurrence) {
@@ -41,6 +60,10 @@ public class ChurchModeSchedule {
     public int getEndHour() { return endHour; }
     public int getEndMinute() { return endMinute; }
     public String getRecurrence() { return recurrence; }
+    public int getWeekOfMonth() { return weekOfMonth; }
+    public long getAnchorDay() { return anchorDay; }
+    public List<Long> getDates() { return dates; }
+    public List<Long> getExceptionDates() { return exceptionDates; }
 
     // Setters
     public void setName(String name) { this.name = name; }
@@ -50,6 +73,10 @@ public class ChurchModeSchedule {
     public void setEndHour(int endHour) { this.endHour = endHour; }
     public void setEndMinute(int endMinute) { this.endMinute = endMinute; }
     public void setRecurrence(String recurrence) { this.recurrence = recurrence; }
+    public void setWeekOfMonth(int weekOfMonth) { this.weekOfMonth = weekOfMonth; }
+    public void setAnchorDay(long anchorDay) { this.anchorDay = anchorDay; }
+    public void setDates(List<Long> dates) { this.dates = dates; }
+    public void setExceptionDates(List<Long> exceptionDates) { this.exceptionDates = exceptionDates; }
 
     public JSONObject toJson() throws JSONException {
         JSONObject obj = new JSONObject();
@@ -67,6 +94,10 @@ public class ChurchModeSchedule {
         obj.put("endHour", endHour);
         obj.put("endMinute", endMinute);
         obj.put("recurrence", recurrence);
+        obj.put("weekOfMonth", weekOfMonth);
+        obj.put("anchorDay", anchorDay);
+        obj.put("dates", toJsonArray(dates));
+        obj.put("exceptionDates", toJsonArray(exceptionDates));
         return obj;
     }
 
@@ -86,6 +117,30 @@ public class ChurchModeSchedule {
         int endMinute = obj.getInt("endMinute");
         String recurrence = obj.getString("recurrence");
         
-        return new ChurchModeSchedule(id, name, daysOfWeek, startHour, startMinute, endHour, endMinute, recurrence);
+        ChurchModeSchedule schedule = new ChurchModeSchedule(id, name, daysOfWeek, startHour, startMinute, endHour, endMinute, recurrence);
+        // Schedules saved before recurrences were supported don't have these
+        schedule.setWeekOfMonth(obj.optInt("weekOfMonth", 1));
+        schedule.setAnchorDay(obj.optLong("anchorDay", 0));
+        schedule.setDates(fromJsonArray(obj.optJSONArray("dates")));
+        schedule.setExceptionDates(fromJsonArray(obj.optJSONArray("exceptionDates")));
+        return schedule;
+    }
+
+    private static JSONArray toJsonArray(List<Long> values) {
+        JSONArray arr = new JSONArray();
+        for (Long value : values) {
+            arr.put(value);
+        }
+        return arr;
+    }
+
+    private static List<Long> fromJsonArray(JSONArray arr) throws JSONException {
+        List<Long> values = new ArrayList<>();
+        if (arr != null) {
+            for (int i = 0; i < arr.length(); i++) {
+                values.add(arr.getLong(i));
+            }
+        }
+        return values;
     }
 }
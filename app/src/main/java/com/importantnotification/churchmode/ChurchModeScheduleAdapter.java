@@ -5,24 +5,74 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 import com.importantnotification.R;
 
+import java.time.LocalDate;
 import java.util.List;
+import java.util.UUID;
 
-public class ChurchModeScheduleAdapter extends RecyclerView.Adapter<ChurchModeScheduleAdapter.ViewHolder> {
+/**
+ * Schedule list backed by {@link ListAdapter}: changes are diffed off the main thread by schedule
+ * ID, so an add, edit or delete only rebinds the rows it touched. The text of each row is
+ * worked out once per schedule version in {@link ScheduleItem}, not on every bind.
+ */
+public class ChurchModeScheduleAdapter extends ListAdapter<ChurchModeScheduleAdapter.ScheduleItem, ChurchModeScheduleAdapter.ViewHolder> {
 
     public interface OnScheduleActionListener {
         void onEdit(ChurchModeSchedule schedule);
         void onDelete(ChurchModeSchedule schedule);
     }
 
-    private final List<ChurchModeSchedule> schedules;
+    private static final DiffUtil.ItemCallback<ScheduleItem> DIFF_CALLBACK = new DiffUtil.ItemCallback<ScheduleItem>() {
+        @Override
+        public boolean areItemsTheSame(ScheduleItem oldItem, ScheduleItem newItem) {
+            return oldItem.getSchedule().getId().equals(newItem.getSchedule().getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(ScheduleItem oldItem, ScheduleItem newItem) {
+            // Everything a row shows is in its precomputed text
+            return oldItem.name.equals(newItem.name)
+                && oldItem.time.equals(newItem.time)
+                && oldItem.days.equals(newItem.days);
+        }
+    };
+
     private final OnScheduleActionListener listener;
 
-    public ChurchModeScheduleAdapter(List<ChurchModeSchedule> schedules, OnScheduleActionListener listener) {
-        this.schedules = schedules;
+    public ChurchModeScheduleAdapter(OnScheduleActionListener listener) {
+        super(DIFF_CALLBACK);
         this.listener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * One row of the list: a schedule with its display text. Items are immutable, so an edited
+     * schedule gets a new item.
+     */
+    public static class ScheduleItem {
+        private final ChurchModeSchedule schedule;
+        private final long stableId;
+        final String name;
+        final String time;
+        final String days;
+
+        public ScheduleItem(ChurchModeSchedule schedule) {
+            this.schedule = schedule;
+            this.stableId = stableId(schedule.getId());
+            this.name = schedule.getName();
+            this.time = String.format("%02d:%02d - %02d:%02d",
+                schedule.getStartHour(), schedule.getStartMinute(),
+                schedule.getEndHour(), schedule.getEndMinute());
+            this.days = describeRecurrence(schedule);
+        }
+
+        public ChurchModeSchedule getSchedule() {
+            return schedule;
+        }
     }
 
     public static class ViewHolder extends RecyclerView.ViewHolder {
@@ -46,34 +96,96 @@ public class ChurchModeScheduleAdapter extends RecyclerView.Adapter<ChurchModeSc
     public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext())
                 .inflate(R.layout.item_church_mode_schedule, parent, false);
-        return new ViewHolder(view);
+        ViewHolder holder = new ViewHolder(view);
+
+        // Set up once per view rather than on every bind
+        holder.editButton.setOnClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) listener.onEdit(getItem(position).getSchedule());
+        });
+        holder.deleteButton.setOnClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) listener.onDelete(getItem(position).getSchedule());
+        });
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        ChurchModeSchedule schedule = schedules.get(position);
-        holder.name.setText(schedule.getName());
-        holder.time.setText(String.format("%02d:%02d - %02d:%02d", 
-            schedule.getStartHour(), schedule.getStartMinute(), 
-            schedule.getEndHour(), schedule.getEndMinute()));
-        
-        StringBuilder daysText = new StringBuilder();
-        for (int i = 0; i < schedule.getDaysOfWeek().size(); i++) {
-            if (i > 0) daysText.append(", ");
-            daysText.append(dayIntToString(schedule.getDaysOfWeek().get(i)));
-        }
-        holder.days.setText(daysText.toString());
-        
-        holder.editButton.setOnClickListener(v -> listener.onEdit(schedule));
-        holder.deleteButton.setOnClickListener(v -> listener.onDelete(schedule));
+        ScheduleItem item = getItem(position);
+        holder.name.setText(item.name);
+        holder.time.setText(item.time);
+        holder.days.setText(item.days);
     }
 
     @Override
-    public int getItemCount() {
-        return schedules.size();
+    public long getItemId(int position) {
+        return getItem(position).stableId;
+    }
+
+    /**
+     * Stable row ID from a schedule's UUID string
+     */
+    private static long stableId(String id) {
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        } catch (IllegalArgumentException e) {
+            return id.hashCode();
+        }
+    }
+
+    /**
+     * Days line for a schedule, e.g. "Sun, Wed", "Sun, every other week" or "Last Sun of the month"
+     */
+    private static String describeRecurrence(ChurchModeSchedule schedule) {
+        StringBuilder text = new StringBuilder();
+        String recurrence = schedule.getRecurrence();
+
+        if (ChurchModeSchedule.RECURRENCE_ONE_OFF.equals(recurrence)) {
+            List<Long> dates = schedule.getDates();
+            if (dates.size() <= 3) {
+                for (int i = 0; i < dates.size(); i++) {
+                    if (i > 0) text.append(", ");
+                    text.append(LocalDate.ofEpochDay(dates.get(i)));
+                }
+            } else {
+                text.append(dates.size()).append(" dates");
+            }
+        } else {
+            if (ChurchModeSchedule.RECURRENCE_MONTHLY.equals(recurrence)) {
+                text.append(weekOfMonthToString(schedule.getWeekOfMonth())).append(" ");
+            }
+            for (int i = 0; i < schedule.getDaysOfWeek().size(); i++) {
+                if (i > 0) text.append(", ");
+                text.append(dayIntToString(schedule.getDaysOfWeek().get(i)));
+            }
+            if (ChurchModeSchedule.RECURRENCE_MONTHLY.equals(recurrence)) {
+                text.append(" of the month");
+            } else if (ChurchModeSchedule.RECURRENCE_BIWEEKLY.equals(recurrence)) {
+                text.append(", every other week");
+            }
+        }
+
+        int skipped = schedule.getExceptionDates().size();
+        if (skipped > 0) {
+            text.append(" (skips ").append(skipped).append(skipped == 1 ? " date)" : " dates)");
+        }
+        return text.toString();
+    }
+
+    private static String weekOfMonthToString(int week) {
+        switch (week) {
+            case 1: return "First";
+            case 2: return "Second";
+            case 3: return "Third";
+            case 4: return "Fourth";
+            case ChurchModeSchedule.LAST_WEEK: return "Last";
+            default: return "?";
+        }
     }
 
-    private String dayIntToString(int day) {
+    private static String dayIntToString(int day) {
         switch (day) {
             case 1: return "Sun";
             case 2: return "Mon";
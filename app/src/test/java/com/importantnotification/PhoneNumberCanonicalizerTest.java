@@ -0,0 +1,56 @@
+package com.importantnotification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class PhoneNumberCanonicalizerTest {
+    @Test
+    public void bufferMatchKeyMatchesCanonicalMatchKey() {
+        char[] buffer = new char[PhoneNumberNormalizer.MAX_LENGTH];
+        for (String number : PhoneNumberNormalizerTest.CORPUS) {
+            int length = PhoneNumberNormalizer.cleanInto(number, buffer);
+            long expected = PhoneNumberCanonicalizer.matchKey(PhoneNumberCanonicalizer.canonicalize(number));
+            assertEquals(number, expected, PhoneNumberCanonicalizer.matchKey(buffer, length));
+        }
+    }
+
+    @Test
+    public void formatsOfOneNumberShareAKey() {
+        long key = PhoneNumberCanonicalizer.matchKey(PhoneNumberCanonicalizer.canonicalize("+15551234567"));
+        for (String number : new String[] {"5551234567", "(555) 123-4567", "1-555-123-4567", "011 1 555 123 4567"}) {
+            char[] buffer = new char[PhoneNumberNormalizer.MAX_LENGTH];
+            int length = PhoneNumberNormalizer.cleanInto(number, buffer);
+            assertEquals(number, key, PhoneNumberCanonicalizer.matchKey(buffer, length));
+        }
+    }
+
+    @Test
+    public void numbersWithoutCountryDontCollideWithNationalNumbers() {
+        assertNotEquals(PhoneNumberCanonicalizer.matchKey("+12345"), PhoneNumberCanonicalizer.matchKey("12345"));
+        assertEquals(PhoneNumberCanonicalizer.NO_KEY, PhoneNumberCanonicalizer.matchKey(""));
+        assertEquals(PhoneNumberCanonicalizer.NO_KEY, PhoneNumberCanonicalizer.matchKey((String) null));
+    }
+
+    @Test
+    public void nationalNumbersDontCollideWithOtherCountries() {
+        assertNotEquals(keyOf("+4961234567"), keyOf("(496) 123-4567"));
+        assertEquals(keyOf("+14961234567"), keyOf("(496) 123-4567"));
+    }
+
+    @Test
+    public void numbersWithoutCountryKeepTheirLeadingZeros() {
+        assertNotEquals(keyOf("011"), keyOf("11"));
+        assertNotEquals(keyOf("0612345"), keyOf("612345"));
+        assertNotEquals(keyOf("0"), keyOf("00"));
+    }
+
+    private static long keyOf(String number) {
+        char[] buffer = new char[PhoneNumberNormalizer.MAX_LENGTH];
+        int length = PhoneNumberNormalizer.cleanInto(number, buffer);
+        long key = PhoneNumberCanonicalizer.matchKey(buffer, length);
+        assertEquals(number, PhoneNumberCanonicalizer.matchKey(PhoneNumberCanonicalizer.canonicalize(number)), key);
+        return key;
+    }
+}
@@ -0,0 +1,79 @@
+package com.importantnotification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class PhoneNumberNormalizerTest {
+    // Formats seen from carriers, contacts and user input
+    static final String[] CORPUS = {
+        "5551234567",
+        "555 123 4567",
+        "555-123-4567",
+        "555.123.4567",
+        "(555) 123-4567",
+        "+1 (555) 123-4567",
+        "+15551234567",
+        "1-555-123-4567",
+        "0044 20 7946 0958",
+        "011 44 20 7946 0958",
+        "+44 (0)20 7946 0958",
+        "555+1234567",
+        "+1+555+123+4567",
+        "1-800-FLOWERS",
+        "555-CALL-NOW",
+        "Private",
+        "",
+        "+",
+        "++",
+        "555-123-4567 ext. 89",
+        "555-123-4567 x89",
+        "555-123-4567;ext=89",
+        "555-123-4567,,89#",
+        "‎+1 555 123‑4567",
+        "５５５",
+        "12345",
+        "911",
+    };
+
+    private static String regexClean(String number) {
+        return number == null ? "" : number.replaceAll("[^+\\d]", "");
+    }
+
+    @Test
+    public void cleanMatchesRegex() {
+        for (String number : CORPUS) {
+            assertEquals(number, regexClean(number), PhoneNumberNormalizer.clean(number));
+        }
+    }
+
+    @Test
+    public void cleanIntoMatchesRegex() {
+        char[] buffer = new char[PhoneNumberNormalizer.MAX_LENGTH];
+        for (String number : CORPUS) {
+            int length = PhoneNumberNormalizer.cleanInto(number, buffer);
+            assertEquals(number, regexClean(number), new String(buffer, 0, length));
+        }
+    }
+
+    @Test
+    public void nullIsEmpty() {
+        assertEquals("", PhoneNumberNormalizer.clean(null));
+        assertEquals(0, PhoneNumberNormalizer.cleanInto(null, new char[PhoneNumberNormalizer.MAX_LENGTH]));
+    }
+
+    @Test
+    public void cleanNumberIsReturnedAsIs() {
+        String number = "+15551234567";
+        assertSame(number, PhoneNumberNormalizer.clean(number));
+    }
+
+    @Test
+    public void cleanIntoKeepsTrailingDigitsWhenTruncating() {
+        char[] buffer = new char[8];
+        int length = PhoneNumberNormalizer.cleanInto("+1 (555) 123-4567 ext. 89", buffer);
+        String cleaned = regexClean("+1 (555) 123-4567 ext. 89");
+        assertEquals(cleaned.substring(cleaned.length() - 8), new String(buffer, 0, length));
+    }
+}